@@ -0,0 +1,192 @@
+import java.nio.ByteBuffer;
+
+/*
+ * The binary wire format, an alternative to the text protocol for heavy clients such as bots.
+ * A client opts in by sending MAGIC as the very first byte of its connection. From then on,
+ * every frame in both directions is
+ *
+ *     opcode (1 byte) | payload length (2 bytes, big endian) | payload
+ *
+ * and the payload is a sequence of fields, each one a 2 byte big endian length followed by
+ * that many bytes of UTF-8. There is no line framing and no escaping. Text clients are not
+ * affected: both kinds of clients share rooms and private messages.
+ *
+ * Client to server:			Server to client:
+ *   NICK	 nick				  OK
+ *   JOIN	 room				  ERROR
+ *   LEAVE						  NEWNICK	old_nick new_nick
+ *   BYE						  JOINED	nick
+ *   PRIVATE recipient message	  LEFT		nick
+ *   MESSAGE message			  BYE
+ *   STATS						  PRIVATE	sender message
+ *   HISTORY count				  MESSAGE	sender message
+ *   PONG						  STATS		summary
+ *   COMPRESS					  PING
+ *   SEND	 target name size	  COMPRESS
+ *								  FILE		sender name size
+ *
+ * COMPRESS asks for what the server sends to be compressed from then on, see Compression.
+ * SEND and FILE are followed by the file's content, 'size' raw bytes outside of any frame, see
+ * FileTransfer; the size is in decimal.
+ */
+class BinaryProtocol {
+
+	// Can't start a line of UTF-8 text, so it tells both protocols apart
+	static final byte MAGIC = (byte) 0xB1;
+
+	static final int HEADER		 = 3;
+	static final int MAX_PAYLOAD = 0xFFFF;
+
+	/*
+	 * Opcodes used in both directions.
+	 */
+	static final byte NICK	  = 1;
+	static final byte JOIN	  = 2;
+	static final byte LEAVE	  = 3;
+	static final byte BYE	  = 4;
+	static final byte PRIVATE = 5;
+	static final byte MESSAGE = 6;
+	static final byte STATS	  = 7;
+	static final byte HISTORY = 8;
+	static final byte PONG	  = 9;
+	static final byte COMPRESS = 10;
+	static final byte SEND	  = 11;
+
+	/*
+	 * Opcodes only sent by the server.
+	 */
+	static final byte OK	  = 0x10;
+	static final byte ERROR	  = 0x11;
+	static final byte NEWNICK = 0x12;
+	static final byte JOINED  = 0x13;
+	static final byte LEFT	  = 0x14;
+	static final byte PING	  = 0x15;
+	static final byte FILE	  = 0x16;
+
+	/*
+	 * Status replies, encoded once.
+	 */
+	static private final ByteBuffer OK_FRAME	= encode(true, OK).asReadOnlyBuffer();
+	static private final ByteBuffer ERROR_FRAME = encode(true, ERROR).asReadOnlyBuffer();
+	static private final ByteBuffer BYE_FRAME	= encode(true, BYE).asReadOnlyBuffer();
+	static private final ByteBuffer PING_FRAME	= encode(true, PING).asReadOnlyBuffer();
+	static private final ByteBuffer COMPRESS_FRAME = encode(true, COMPRESS).asReadOnlyBuffer();
+
+	/**
+	 * A status reply frame.
+	 *
+	 * @param opcode - OK, ERROR, BYE, PING or COMPRESS
+	 */
+	static ByteBuffer status(byte opcode) {
+
+		switch(opcode) {
+
+			case OK:	return OK_FRAME.duplicate();
+			case ERROR:	return ERROR_FRAME.duplicate();
+			case BYE:	return BYE_FRAME.duplicate();
+			case PING:	return PING_FRAME.duplicate();
+			case COMPRESS: return COMPRESS_FRAME.duplicate();
+
+			default:
+				throw new IllegalArgumentException("not a status opcode: " + opcode);
+		}
+	}
+
+	/**
+	 * Encodes a frame whose fields are whole arrays.
+	 *
+	 * @param direct - whether to allocate a direct buffer
+	 * @param opcode - the frame's opcode
+	 * @param fields - the frame's fields, in order
+	 */
+	static ByteBuffer encode(boolean direct, byte opcode, byte[]... fields) {
+
+		int payload = 0;
+
+		for(byte[] field : fields) {
+
+			payload += 2 + field.length;
+		}
+
+		ByteBuffer bb = allocate(direct, opcode, payload);
+
+		for(byte[] field : fields) {
+
+			bb.putShort((short) field.length).put(field);
+		}
+
+		bb.flip();
+
+		return bb;
+	}
+
+	/**
+	 * Encodes a frame made of one whole field followed by a slice of a buffer, e.g. a sender
+	 * and a message content.
+	 *
+	 * @param direct - whether to allocate a direct buffer
+	 * @param opcode - the frame's opcode
+	 * @param first	 - the first field
+	 * @param body	 - the buffer holding the second field
+	 * @param offset - where the second field starts in 'body'
+	 * @param length - the second field's length
+	 */
+	static ByteBuffer encode(boolean direct, byte opcode, byte[] first, byte[] body, int offset, int length) {
+
+		ByteBuffer bb = allocate(direct, opcode, 2 + first.length + 2 + length);
+
+		bb.putShort((short) first.length).put(first);
+		bb.putShort((short) length).put(body, offset, length);
+		bb.flip();
+
+		return bb;
+	}
+
+	private static ByteBuffer allocate(boolean direct, byte opcode, int payload) {
+
+		if(payload > MAX_PAYLOAD) {
+
+			throw new IllegalArgumentException("payload too long: " + payload);
+		}
+
+		ByteBuffer bb = direct ? ByteBuffer.allocateDirect(HEADER + payload) : ByteBuffer.allocate(HEADER + payload);
+
+		return bb.put(opcode).putShort((short) payload);
+	}
+
+	/**
+	 * Reads a 2 byte big endian length.
+	 *
+	 * @param b	  - the buffer
+	 * @param pos - where the length starts
+	 */
+	static int readLength(byte[] b, int pos) {
+
+		return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+	}
+
+	/**
+	 * Tells whether a field can be relayed to text clients: it must not contain a line break.
+	 * Names must not contain blanks either, and can't be empty.
+	 *
+	 * @param b		 - the buffer holding the field
+	 * @param offset - where the field starts
+	 * @param length - the field's length
+	 * @param name	 - whether the field is a nickname or a room name
+	 */
+	static boolean isValidField(byte[] b, int offset, int length, boolean name) {
+
+		if(name && length == 0) {
+			return false;
+		}
+
+		for(int i = offset; i < offset + length; i++) {
+
+			if(b[i] == '\n' || b[i] == '\r' || (name && (b[i] == ' ' || b[i] == '\t'))) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,249 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Buffers for the incomplete line or frame a connection has received so far. A connection only
+ * holds one between the read that starts a line and the read that completes it, so idle
+ * connections hold nothing.
+ *
+ * Each event loop has its own pool, used without locking. Chunks come in power of two size
+ * classes, from MIN_CHUNK to MAX_PARTIAL, and are carved out of SLAB_BYTES arrays: a slab is cut
+ * into chunks of one size class, which go back to a free list when released. The slabs of all
+ * the pools together never exceed the configured limit; past it, borrow() fails.
+ *
+ * A slab whose chunks are all free is given back to the limit, so that it caps the chunks in use
+ * rather than the most ever used of each size class. A pool keeps one such slab per size class
+ * though, so a connection that borrows and releases the same size doesn't allocate a slab every
+ * time; it drops them too when it hits the limit, but the other pools' are only dropped by them.
+ */
+class BufferPool {
+
+	static final int MIN_CHUNK	 = 1024;
+	static final int MAX_PARTIAL = 128 * 1024;		// longest line or frame a connection may send
+	static final int SLAB_BYTES	 = 256 * 1024;
+
+	static private final int CLASSES = Integer.numberOfTrailingZeros(MAX_PARTIAL / MIN_CHUNK) + 1;
+
+	// Slab bytes across all pools, and how many there may be
+	static private final AtomicLong reserved = new AtomicLong();
+	static long limit = 256L << 20;
+
+	/*
+	 * A piece of a slab. The view covers just the chunk, so position 0 is 'offset' in 'array';
+	 * reads go straight into it.
+	 */
+	static class Chunk {
+
+		final byte[] array;
+		final int offset;
+		final int capacity;
+		final ByteBuffer view;
+
+		final int size_class;		// -1 when not pooled
+		final Slab slab;			// null when not pooled
+		Chunk prev, next;			// in its pool's free list
+
+		Chunk(byte[] array, int offset, int capacity, int size_class, Slab slab) {
+
+			this.array		= array;
+			this.offset		= offset;
+			this.capacity	= capacity;
+			this.view		= ByteBuffer.wrap(array, offset, capacity).slice();
+			this.size_class = size_class;
+			this.slab		= slab;
+		}
+	}
+
+	// The chunks of a slab, and how many of them are borrowed
+	static private class Slab {
+
+		final Chunk[] chunks;
+		int used;
+
+		Slab(int chunks) {
+
+			this.chunks = new Chunk[chunks];
+		}
+	}
+
+	// Head of the free list of each size class, and the slab of it kept while all free, if any
+	private final Chunk[] free	= new Chunk[CLASSES];
+	private final Slab[] spare = new Slab[CLASSES];
+
+	/**
+	 * Borrows a chunk of at least the given size.
+	 *
+	 * @param size - how many bytes it must hold, at most MAX_PARTIAL
+	 * @return the chunk, or null if the pools are at their limit
+	 */
+	Chunk borrow(int size) {
+
+		int size_class = sizeClass(size);
+
+		if(free[size_class] == null && !carve(size_class)) {
+
+			// The spares of the other size classes are all this pool can give back
+			dropSpares();
+
+			if(!carve(size_class)) {
+				return null;
+			}
+		}
+
+		Chunk chunk = free[size_class];
+
+		unlink(chunk);
+
+		if(chunk.slab.used++ == 0 && spare[size_class] == chunk.slab) {
+
+			spare[size_class] = null;
+		}
+
+		ChatServer.metrics.partial_buffers.increment();
+
+		return chunk;
+	}
+
+	/**
+	 * Gives a chunk back to the pool it was borrowed from.
+	 *
+	 * @param chunk - the chunk; not used by the caller anymore
+	 */
+	void release(Chunk chunk) {
+
+		ChatServer.metrics.partial_buffers.decrement();
+
+		if(chunk.size_class < 0) {
+			return;
+		}
+
+		push(chunk);
+
+		if(--chunk.slab.used > 0) {
+			return;
+		}
+
+		if(spare[chunk.size_class] == null) {
+
+			spare[chunk.size_class] = chunk.slab;
+
+		} else {
+
+			drop(chunk.slab);
+		}
+	}
+
+	/**
+	 * A chunk of its own for a connection without an event loop, see ThreadEngine. It goes
+	 * to the garbage collector when released.
+	 *
+	 * @param size - how many bytes it must hold, at most MAX_PARTIAL
+	 */
+	static Chunk unpooled(int size) {
+
+		int capacity = MIN_CHUNK << sizeClass(size);
+
+		ChatServer.metrics.partial_buffers.increment();
+
+		return new Chunk(new byte[capacity], 0, capacity, -1, null);
+	}
+
+	/**
+	 * Slab bytes allocated by all pools.
+	 */
+	static long reservedBytes() {
+
+		return reserved.get();
+	}
+
+	// Allocates a slab and puts its chunks on the free list
+	private boolean carve(int size_class) {
+
+		if(reserved.addAndGet(SLAB_BYTES) > limit) {
+
+			reserved.addAndGet(-SLAB_BYTES);
+			return false;
+		}
+
+		byte[] array = new byte[SLAB_BYTES];
+		int capacity = MIN_CHUNK << size_class;
+		Slab slab	 = new Slab(SLAB_BYTES / capacity);
+
+		for(int i = 0; i < slab.chunks.length; i++) {
+
+			Chunk chunk = new Chunk(array, i * capacity, capacity, size_class, slab);
+
+			slab.chunks[i] = chunk;
+			push(chunk);
+		}
+
+		return true;
+	}
+
+	// Takes the chunks of a slab with none borrowed off the free list, and gives it back
+	private void drop(Slab slab) {
+
+		for(Chunk chunk : slab.chunks) {
+
+			unlink(chunk);
+		}
+
+		reserved.addAndGet(-SLAB_BYTES);
+	}
+
+	private void dropSpares() {
+
+		for(int i = 0; i < CLASSES; i++) {
+
+			if(spare[i] != null) {
+
+				drop(spare[i]);
+				spare[i] = null;
+			}
+		}
+	}
+
+	private void push(Chunk chunk) {
+
+		Chunk head = free[chunk.size_class];
+
+		chunk.next = head;
+
+		if(head != null) {
+
+			head.prev = chunk;
+		}
+
+		free[chunk.size_class] = chunk;
+	}
+
+	private void unlink(Chunk chunk) {
+
+		if(chunk.prev != null) {
+
+			chunk.prev.next = chunk.next;
+
+		} else {
+
+			free[chunk.size_class] = chunk.next;
+		}
+
+		if(chunk.next != null) {
+
+			chunk.next.prev = chunk.prev;
+		}
+
+		chunk.prev = null;
+		chunk.next = null;
+	}
+
+	static private int sizeClass(int size) {
+
+		if(size <= MIN_CHUNK) {
+
+			return 0;
+		}
+
+		return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_CHUNK);
+	}
+}
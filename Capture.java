@@ -0,0 +1,381 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A recording of what clients send, to be played back against a server by Replay. With
+ * --capture file, the server records every connection opened and closed, and every line or
+ * frame it runs, in the order it ran them:
+ *
+ *     "CHATCAP1" | start time (8 bytes, milliseconds since the epoch) | records...
+ *
+ *     record: kind (1 byte) | connection id | microseconds since the previous record
+ *             [ | length | bytes, for LINE, FRAME and DATA ]
+ *
+ * Numbers are unsigned varints, 7 bits a byte, so most records of a chat line cost 4 bytes on
+ * top of the line. Connection ids are the server's session ids: a closed connection's id comes
+ * back for a later one, after its CLOSE. A LINE is a text line without its '\n'; a FRAME is a
+ * whole binary frame, header included, and the first one of a connection means it spoke
+ * BinaryProtocol. DATA is part of a file's content, as read after its /send or SEND, see
+ * FileTransfer.
+ *
+ * Like History, the event loops never touch the file: they append the records to a buffer under
+ * the capture's monitor, and the "chat-capture" thread writes the filled buffers. When it falls
+ * behind and no buffer is free, records are dropped and counted, and the capture is no longer
+ * a faithful one. Whatever is buffered is written when the server exits.
+ */
+class Capture {
+
+	static final byte OPEN	= 1;
+	static final byte LINE	= 2;
+	static final byte FRAME = 3;
+	static final byte CLOSE = 4;
+	static final byte DATA	= 5;
+
+	static final byte[] MAGIC = "CHATCAP1".getBytes(StandardCharsets.US_ASCII);
+
+	static private final int BUFFER_SIZE = 256 << 10;
+	static private final int BUFFERS	 = 8;
+
+	// Most a record takes besides its bytes: the kind and three varints
+	static private final int RECORD_HEADER = 1 + 3 * 5;
+
+	private final FileChannel file;
+
+	// Buffers to fill, and filled ones waiting for the writer, in order
+	private final ArrayBlockingQueue<ByteBuffer> free  = new ArrayBlockingQueue<>(BUFFERS);
+	private final ArrayBlockingQueue<ByteBuffer> ready = new ArrayBlockingQueue<>(BUFFERS);
+
+	private final Thread writer;
+	private volatile boolean stopping;
+
+	// The buffer being filled, null if none was free; and the time of the last record, in nanoseconds
+	private ByteBuffer current;
+	private long last;
+
+	/**
+	 * Creates the capture file, replacing any, and starts the writer thread.
+	 *
+	 * @param path - the capture file
+	 */
+	Capture(Path path) throws IOException {
+
+		file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+		ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 8);
+		header.put(MAGIC).putLong(System.currentTimeMillis()).flip();
+
+		while(header.hasRemaining()) {
+
+			file.write(header);
+		}
+
+		for(int i = 0; i < BUFFERS; i++) {
+
+			free.add(ByteBuffer.allocate(BUFFER_SIZE));
+		}
+
+		current = free.poll();
+		last	= System.nanoTime();
+
+		writer = new Thread(this::drain, "chat-capture");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+
+		Log.info("Capturing client traffic to " + path);
+	}
+
+	void opened(int connection) {
+
+		record(OPEN, connection, null, 0, 0);
+	}
+
+	void closed(int connection) {
+
+		record(CLOSE, connection, null, 0, 0);
+	}
+
+	/**
+	 * Records a text line, before it runs.
+	 *
+	 * @param connection - the session id of the client that sent it
+	 * @param data		 - the buffer holding the line
+	 * @param offset	 - where the line starts
+	 * @param length	 - its length, without the '\n'
+	 */
+	void line(int connection, byte[] data, int offset, int length) {
+
+		record(LINE, connection, data, offset, length);
+	}
+
+	/**
+	 * Records a binary frame, before it runs.
+	 *
+	 * @param connection - the session id of the client that sent it
+	 * @param data		 - the buffer holding the frame
+	 * @param offset	 - where the frame starts
+	 * @param length	 - its length, header included
+	 */
+	void frame(int connection, byte[] data, int offset, int length) {
+
+		record(FRAME, connection, data, offset, length);
+	}
+
+	/**
+	 * Records part of a file's content, as read.
+	 *
+	 * @param connection - the session id of the client that sent it
+	 * @param data		 - the buffer holding the bytes
+	 * @param offset	 - where they start
+	 * @param length	 - how many there are
+	 */
+	void data(int connection, byte[] data, int offset, int length) {
+
+		record(DATA, connection, data, offset, length);
+	}
+
+	// Appends a record, or counts it as dropped if there's no room for it. Never blocks.
+	private synchronized void record(byte kind, int connection, byte[] data, int offset, int length) {
+
+		int size = RECORD_HEADER + length;
+
+		if(current != null && current.remaining() < size) {
+
+			// Has room: the other buffers are free, queued or being written
+			ready.add(current);
+			current = null;
+		}
+
+		if(current == null) {
+
+			current = free.poll();
+		}
+
+		if(current == null || current.remaining() < size || stopping) {
+
+			ChatServer.metrics.capture_dropped.increment();
+			return;
+		}
+
+		long now = System.nanoTime();
+
+		current.put(kind);
+		putVarint(current, connection);
+		putVarint(current, (now - last) / 1000);
+
+		// The part of a microsecond not counted is carried to the next record
+		last = now - (now - last) % 1000;
+
+		if(kind == LINE || kind == FRAME || kind == DATA) {
+
+			putVarint(current, length);
+			current.put(data, offset, length);
+		}
+
+		ChatServer.metrics.capture_records.increment();
+	}
+
+	// Hands what was recorded to the writer, so a quiet server doesn't keep it buffered for long
+	private synchronized void handOver() {
+
+		if(current != null && current.position() > 0) {
+
+			ready.add(current);
+			current = null;
+		}
+	}
+
+	// The writer thread: writes the filled buffers in order, and hands them back
+	private void drain() {
+
+		while(!stopping || !ready.isEmpty()) {
+
+			ByteBuffer bb;
+
+			try {
+
+				bb = ready.poll(1, TimeUnit.SECONDS);
+
+			} catch(InterruptedException ie) {
+
+				return;
+			}
+
+			if(bb == null) {
+
+				handOver();
+				continue;
+			}
+
+			bb.flip();
+
+			try {
+
+				while(bb.hasRemaining()) {
+
+					file.write(bb);
+				}
+
+			} catch(IOException ie) {
+
+				Log.error("Error writing the capture: " + ie);
+			}
+
+			bb.clear();
+			free.add(bb);
+		}
+	}
+
+	// At exit: lets the writer write what's left, then closes the file
+	private void stop() {
+
+		synchronized(this) {
+
+			stopping = true;
+
+			if(current != null && current.position() > 0) {
+
+				ready.add(current);
+				current = null;
+			}
+		}
+
+		try {
+
+			writer.join(5000);
+			file.close();
+
+		} catch(InterruptedException | IOException e) { }
+	}
+
+	static private void putVarint(ByteBuffer bb, long value) {
+
+		while((value & ~0x7FL) != 0) {
+
+			bb.put((byte) (value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+
+		bb.put((byte) value);
+	}
+
+	/*
+	 * Reads a capture back, one record at a time.
+	 */
+	static class Reader implements AutoCloseable {
+
+		private final DataInputStream in;
+
+		// When the capture started, in milliseconds since the epoch
+		final long started;
+
+		// The current record: its kind, connection, time since the capture started in
+		// microseconds, and its bytes in data[0, length)
+		byte kind;
+		int connection;
+		long time;
+		byte[] data = new byte[1024];
+		int length;
+
+		Reader(Path path) throws IOException {
+
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16));
+
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+
+			if(!Arrays.equals(magic, MAGIC)) {
+
+				in.close();
+				throw new IOException(path + " is not a capture");
+			}
+
+			started = in.readLong();
+		}
+
+		/**
+		 * Moves to the next record.
+		 *
+		 * @return false at the end of the capture
+		 */
+		boolean next() throws IOException {
+
+			int b = in.read();
+
+			if(b < 0) {
+				return false;
+			}
+
+			kind	   = (byte) b;
+			connection = (int) readVarint();
+			time	  += readVarint();
+			length	   = 0;
+
+			switch(kind) {
+
+				case OPEN:
+				case CLOSE:
+					break;
+
+				case LINE:
+				case FRAME:
+				case DATA:
+					length = (int) readVarint();
+
+					if(length > data.length) {
+
+						data = new byte[Math.max(length, data.length * 2)];
+					}
+
+					in.readFully(data, 0, length);
+					break;
+
+				default:
+					throw new IOException("Bad capture record " + b);
+			}
+
+			return true;
+		}
+
+		private long readVarint() throws IOException {
+
+			long value = 0;
+
+			for(int shift = 0; shift < 64; shift += 7) {
+
+				int b = in.read();
+
+				if(b < 0) {
+
+					throw new EOFException("Truncated capture");
+				}
+
+				value |= (long) (b & 0x7F) << shift;
+
+				if((b & 0x80) == 0) {
+					return value;
+				}
+			}
+
+			throw new IOException("Bad varint in capture");
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			in.close();
+		}
+	}
+}
@@ -1,19 +1,24 @@
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
 
 public class ChatClient {
@@ -22,19 +27,87 @@ public class ChatClient {
     private JTextField chatBox = new JTextField();
     private JTextArea chatArea = new JTextArea();
     
-    static private BufferedReader input;
-    static private DataOutputStream output;
-    static private Socket socket;
-	static private Scanner scanner;
+    // Does the networking; this class is only the window on top of it
+    private final ClientLoop loop = new ClientLoop();
+    private ChatSession session;
+    
+    // Lines kept in the text box by default; older ones are dropped
+    static final int DEFAULT_SCROLLBACK = 5000;
+    
+    // How often queued lines are applied to the text box, i.e. once per frame
+    static private final int FRAME_MILLIS = 16;
+    
+    private final int scrollback;
+    
+    // Lines received but not shown yet, at most a scrollback's worth, and how many didn't fit
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private int skipped;
+    
+    // Applies the pending lines on the EDT; started when the first line of a batch is queued
+    private final Timer repaint = new Timer(FRAME_MILLIS, e -> showPending());
+    private final Runnable start_repaint = repaint::restart;
     
     /**
-     * Appends a string to the text box.
+     * Appends a string to the text box. Called from any thread: the string is queued, and the
+     * text box updated with everything queued once per frame.
      * 
      * @param message - the message to append
      */
     public void printMessage(final String message) {
     	
-        chatArea.append(message);
+    	synchronized(pending) {
+    		
+    		if(pending.size() == scrollback) {
+    			
+    			// Would scroll out as soon as shown anyway
+    			pending.poll();
+    			skipped++;
+    		}
+    		
+    		pending.add(message);
+    		
+    		if(pending.size() > 1 || skipped > 0) {
+    			return;
+    		}
+    	}
+    	
+    	SwingUtilities.invokeLater(start_repaint);
+    }
+    
+    // On the EDT: one append for all the pending lines, then old lines scroll out
+    private void showPending() {
+    	
+    	StringBuilder text = new StringBuilder();
+    	
+    	synchronized(pending) {
+    		
+    		if(skipped > 0) {
+    			
+    			text.append("- ").append(skipped).append(" line(s) skipped.\n");
+    			skipped = 0;
+    		}
+    		
+    		for(String line : pending) {
+    			
+    			text.append(line);
+    		}
+    		
+    		pending.clear();
+    	}
+    	
+    	chatArea.append(text.toString());
+    	
+    	// Trimmed by batches of an eighth of the scrollback, so it's not done on every frame
+    	int excess = chatArea.getLineCount() - 1 - scrollback;
+    	
+    	if(excess > scrollback / 8) {
+    		
+    		try {
+    			
+    			chatArea.getDocument().remove(0, chatArea.getLineStartOffset(excess));
+    			
+    		} catch(BadLocationException e) { }
+    	}
     }
 
     /**
@@ -45,6 +118,21 @@ public class ChatClient {
      */
     public ChatClient(String server, int port) throws IOException {
     	
+    	this(server, port, DEFAULT_SCROLLBACK);
+    }
+    
+    /**
+     * Class constructor.
+     * 
+     * @param server
+     * @param port
+     * @param scrollback - how many lines the text box keeps
+     */
+    public ChatClient(String server, int port, int scrollback) throws IOException {
+    	
+    	this.scrollback = Math.max(1, scrollback);
+    	repaint.setRepeats(false);
+    	
         /*
          * Initialize graphic interface.
          */
@@ -83,9 +171,7 @@ public class ChatClient {
         
         try {
             
-            ChatClient.socket = new Socket(server, port);
-            ChatClient.output = new DataOutputStream(socket.getOutputStream());
-            ChatClient.input  = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            session = loop.connect(server, port, new Listener());
             
         } catch(UnknownHostException e) {
         	
@@ -94,84 +180,194 @@ public class ChatClient {
     }
 
     /**
-     * Called every time a message is sent.
+     * Called every time a message is sent. '/send target path' sends a local file, under its
+     * own name.
      * 
      * @param message - the input message
      */
     public void newMessage(String message) throws IOException {
     	
-    	message = message + "\n";
+    	if(session == null) {
+    		
+    		throw new IOException("Not connected");
+    	}
+    	
+    	String[] args = message.split(" +", 3);
+    	
+    	if(args.length == 3 && args[0].equals("/send")) {
+    		
+    		sendFile(args[1], Paths.get(args[2]));
+    		return;
+    	}
+    	
+    	session.send(message);
+    }
+    
+    // Only opens the file: the session streams it from disk as the socket takes it
+    private void sendFile(String target, Path path) {
     	
-    	output.write(message.getBytes("UTF-8"));
+    	try {
+    		
+    		String name = path.getFileName().toString().replaceAll("\\s", "_");
+    		long size	= session.sendFile(target, name, path);
+    		
+    		printMessage("- Sending " + name + " (" + size + " bytes) to " + target + "\n");
+    		
+    	} catch(IOException e) {
+    		
+    		printMessage("- Can't send " + path + ": " + e + "\n");
+    	}
     }
 
+    /**
+     * Serves the connection on the calling thread, until it's closed.
+     */
     public void run() throws IOException {
     	
-		try {
-			
-			String message
-	    	, type = "";
-    	
-	    	while((message = input.readLine()) != null) {
-	    		
-	    		scanner = new Scanner(message);	            
-	    		type    = scanner.next();
-	            	
-	            switch(type) {
-	            
-	                case "OK":
-	                    printMessage("- OK.\n");
-	                    break;
-	                    
-	                case "ERROR":	             
-	                	
-	                    printMessage("- An error occurred.\n");
-	                    break;
-	                    	                      
-	                case "NEWNICK":
-	                    printMessage("- " + scanner.next() + " changed his/her name to " + scanner.next() + "\n");
-	                    break;
-	                    
-	                case "JOINED":
-	                    printMessage("- " + scanner.next() + " has joined the room.\n");
-	                    break;
-	                    
-	                case "LEFT":
-	                    printMessage("- " + scanner.next() + " has left the room.\n");
-	                    break;
-	                    
-	                case "BYE":	             
-	                	
-	                    printMessage("Leaving chat... Bye!\n");
-	                    break;
-	                    
-	                case "MESSAGE": {
-	                	String _sender = scanner.next();
-	                    
-	                    printMessage(_sender + ":" + scanner.nextLine() + "\n");
-	                    break;
-	                }
-	                    
-	                case "PRIVATE": {
-	                	String _sender = scanner.next();
-	                	
-	                	printMessage("- Private message from " + _sender + ":" + scanner.nextLine() + "\n");
-	                	break;
-	                }
-	            }
-	        }
-	    	
-		} catch(Exception e) {
-			
-			e.printStackTrace();
-		}
+    	if(session != null) {
+    		
+    		loop.run();
+    	}
     	
         frame.dispose();
     }
     
+    /*
+     * Shows what the server sends. Called on the loop's thread, with views that must be copied,
+     * which the concatenations do.
+     */
+    private class Listener implements ChatSession.Listener {
+    	
+    	// Where the file being received is saved, null if it can't be
+    	private Path file_path;
+    	private FileChannel file;
+    	
+    	@Override
+    	public void ok(ChatSession session) {
+    		
+    		printMessage("- OK.\n");
+    	}
+    	
+    	@Override
+    	public void error(ChatSession session) {
+    		
+    		printMessage("- An error occurred.\n");
+    	}
+    	
+    	@Override
+    	public void newNick(ChatSession session, CharSequence old_nick, CharSequence new_nick) {
+    		
+    		printMessage("- " + old_nick + " changed his/her name to " + new_nick + "\n");
+    	}
+    	
+    	@Override
+    	public void joined(ChatSession session, CharSequence nick) {
+    		
+    		printMessage("- " + nick + " has joined the room.\n");
+    	}
+    	
+    	@Override
+    	public void left(ChatSession session, CharSequence nick) {
+    		
+    		printMessage("- " + nick + " has left the room.\n");
+    	}
+    	
+    	@Override
+    	public void bye(ChatSession session) {
+    		
+    		printMessage("Leaving chat... Bye!\n");
+    	}
+    	
+    	@Override
+    	public void message(ChatSession session, CharSequence nick, CharSequence message) {
+    		
+    		printMessage(nick + ": " + message + "\n");
+    	}
+    	
+    	@Override
+    	public void privateMessage(ChatSession session, CharSequence nick, CharSequence message) {
+    		
+    		printMessage("- Private message from " + nick + ": " + message + "\n");
+    	}
+    	
+    	/*
+    	 * Files are saved in the current directory as 'sender-name', never over an existing one.
+    	 */
+    	@Override
+    	public void file(ChatSession session, CharSequence nick, CharSequence name, long size) {
+    		
+    		file_path = Paths.get((nick + "-" + name).replaceAll("[^\\w.-]", "_"));
+    		
+    		try {
+    			
+    			file = FileChannel.open(file_path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+    			
+    		} catch(IOException ie) {
+    			
+    			printMessage("- Can't save " + name + " from " + nick + ": " + ie + "\n");
+    			file = null;
+    		}
+    	}
+    	
+    	@Override
+    	public void fileData(ChatSession session, ByteBuffer chunk, boolean last) {
+    		
+    		if(file == null) {
+    			return;
+    		}
+    		
+    		try {
+    			
+    			while(chunk.hasRemaining()) {
+    				
+    				file.write(chunk);
+    			}
+    			
+    			if(last) {
+    				
+    				file.close();
+    				file = null;
+    				printMessage("- Received " + file_path + " (" + Files.size(file_path) + " bytes)\n");
+    			}
+    			
+    		} catch(IOException ie) {
+    			
+    			printMessage("- Can't save " + file_path + ": " + ie + "\n");
+    			
+    			try {
+    				file.close();
+    			} catch(IOException e) { }
+    			
+    			file = null;
+    		}
+    	}
+    	
+    	@Override
+    	public void closed(ChatSession session, IOException cause) {
+    		
+    		if(cause != null) {
+    			
+    			printMessage("Connection closed: " + cause + "\n");
+    		}
+    		
+    		loop.shutdown();
+    	}
+    }
+    
     public static void main(String[] args) throws IOException {
     	
-        ChatClient client = new ChatClient(args[0], Integer.parseInt(args[1]));
+    	// Options after the server and port
+    	int scrollback = DEFAULT_SCROLLBACK;
+    	
+    	for(int i = 2; i < args.length; i++) {
+    		
+    		if(args[i].equals("--scrollback")) {
+    			
+    			scrollback = Integer.parseInt(args[++i]);
+    		}
+    	}
+    	
+        ChatClient client = new ChatClient(args[0], Integer.parseInt(args[1]), scrollback);
         client.run();
     }
 }
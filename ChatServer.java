@@ -1,20 +1,24 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 interface Constants {
 
@@ -26,52 +30,359 @@ interface Constants {
 	static final String LEAVE   = "/leave";
 	static final String BYE     = "/bye";
 	static final String PRIVATE = "/priv";
+	static final String STATS   = "/stats";		// admin only
+	static final String HISTORY = "/history";
+	static final String PONG    = "/pong";		// reply to PING
+	static final String COMPRESS = "/compress";
+	static final String SEND    = "/send";		// followed by the file, see FileTransfer
+	
+	/*
+	 * Protocol commands, pre-encoded so incoming lines can be matched without decoding them.
+	 */
+	static final byte[] NICK_BYTES    = NICK.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] JOIN_BYTES    = JOIN.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] LEAVE_BYTES   = LEAVE.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] BYE_BYTES     = BYE.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] PRIVATE_BYTES = PRIVATE.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] STATS_BYTES   = STATS.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] HISTORY_BYTES = HISTORY.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] PONG_BYTES    = PONG.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] COMPRESS_BYTES = COMPRESS.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] SEND_BYTES    = SEND.getBytes(StandardCharsets.US_ASCII);
 	
 	/*
 	 * Response messages.
 	 */
 	static final String OK      = "OK\n";
 	static final String ERROR   = "ERROR\n";
+	static final String GOODBYE = "BYE\n";
+	static final String PING    = "PING\n";
+	static final String COMPRESSED = "COMPRESS\n";	// the last uncompressed line, see Compression
 	
 	static final String NEW_LINE = System.getProperty("line.separator");
+	
+	/*
+	 * Prefixes of the messages relayed to other clients.
+	 */
+	static final byte[] MESSAGE_PREFIX = "MESSAGE ".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] PRIVATE_PREFIX = "PRIVATE ".getBytes(StandardCharsets.US_ASCII);
+	static final byte[] NEW_LINE_BYTES = NEW_LINE.getBytes(StandardCharsets.US_ASCII);
+	static final byte[] LINE_FEED	   = { '\n' };
+	
+	/*
+	 * Limits that keep every relayed message within one binary protocol frame.
+	 */
+	static final int MAX_NICK_BYTES	   = 255;
+	static final int MAX_MESSAGE_BYTES = BinaryProtocol.MAX_PAYLOAD - 4 - MAX_NICK_BYTES;
 }
 
 public class ChatServer implements Constants {
 	
-	// A pre-allocated buffer for the received data
-	static private final ByteBuffer buffer = ByteBuffer.allocate(16384);
-
-	// Decoder for incoming text -- assume UTF-8
-	static private final Charset charset = Charset.forName("UTF8");
-	static private final CharsetDecoder decoder = charset.newDecoder();
+	// Charset for incoming text -- assume UTF-8
+	static final Charset charset = Charset.forName("UTF8");
 	
-	private static HashMap<SocketChannel, Client> clients 		   = new HashMap<>();
-	private static HashMap<String, ArrayList<SocketChannel>> rooms = new HashMap<>();
+	// Shared by all event loops, hence synchronized or concurrent
+	static final Sessions sessions				 = new Sessions();
+	static ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
 
-	private static Scanner command_scanner;	
+	// Who holds each nickname; putIfAbsent() makes the uniqueness check atomic across event loops.
+	// Also read by Federation, which answers the other nodes' claims from it.
+	static ConcurrentHashMap<String, Client> nicknames = new ConcurrentHashMap<>();
+
+	// The selector threads; accepted connections are spread over them in round-robin.
+	// Null when connections are served by ThreadEngine instead.
+	static EventLoop[] loops;
+	
+	// Counters updated by all event loops; read by /stats and over JMX
+	static final ServerMetrics metrics = new ServerMetrics();
+	
+	// Room logs, or null unless started with --history; and how many messages a join replays
+	static History history;
+	static int replay = 20;
+	
+	// Records what clients send, or null unless started with --capture
+	static Capture capture;
+	
+	// Milliseconds of silence before a client is sent PING, and before it's disconnected; 0 is never
+	static long ping_interval = 0;
+	static long idle_timeout  = 0;
+	
+	// Commands per second each client may send, and room messages per second each room may take,
+	// with the bursts allowed on top; 0 is unlimited. See TokenBucket.
+	static int rate		  = 0;
+	static int burst	  = 0;
+	static int room_rate  = 0;
+	static int room_burst = 0;
+	
+	// How many times a minute a client may be throttled before it's disconnected; 0 is never
+	static int max_strikes = 30;
+	static final long STRIKE_WINDOW = 60_000;
+	
+	/*
+	 * What to do with a room message for a client whose queued output is over its budget.
+	 */
+	static final int DROP_OLDEST = 0;		// make room by dropping the oldest queued room messages
+	static final int DROP_NEW	 = 1;		// drop the new message
+	static final int DISCONNECT	 = 2;		// drop the client
+	
+	// Most bytes queued for a client before slow_consumer applies; other lines may use as much again
+	static long max_queued	 = 1 << 20;
+	static int slow_consumer = DROP_OLDEST;
+	
+	// The other nodes serving the same chat, or null unless started with --federation
+	static Federation federation;
+	
+	// throttled_until of a client whose /nick waits for the other nodes: not read meanwhile
+	static final long SUSPENDED = Long.MAX_VALUE;
 
 	/*
-	 * Client's class.
+	 * Client's class. Only ever touched by the event loop that owns the connection, or by the
+	 * connection's own thread with ThreadEngine.
 	 */
-	static private class Client {
+	static class Client {
+		
+		public final SocketChannel channel;
+		public final EventLoop loop;		// null with ThreadEngine
+		
+		// Index in the session table, and what names the connection in the log and in traces
+		public int id;
 		
 		public String nick;
+		public byte[] nick_bytes;
 		public State  state;
-		public String current_room;
-		public StringBuffer buffer;
+		public Room	  room;			// the one the client is in, null if none
+		public int room_slot;		// index in its room's member array, see Members
+		
+		// Bytes of an incomplete line or frame, kept until it's complete; borrowed from the
+		// event loop's BufferPool only meanwhile
+		public BufferPool.Chunk partial;
+		public int partial_length;
+		
+		// Output the socket didn't take yet, and its size; OP_WRITE is set on the key while
+		// it's not empty
+		public SelectionKey key;
+		public final ArrayDeque<ByteBuffer> outbound;
+		public long queued_bytes;
+		public boolean closing;
+		public boolean dirty;		// in its loop's list of clients to flush at the end of the pass
+		
+		// With ThreadEngine, any thread writes to the blocking channel, one at a time. While a
+		// file is being written, what the others write is kept until it's done, at most
+		// max_queued bytes; null otherwise. Guarded by write_lock, signalled once a file is done
+		public final ReentrantLock write_lock;
+		public final Condition file_done;
+		public ArrayDeque<ByteBuffer> deferred;
+		public long deferred_bytes;
+		
+		// When the client last sent anything, and whether it was sent PING since
+		public long last_active;
+		public boolean pinged;
+		
+		// Deadline in the event loop's TimingWheel, and the neighbours in its slot
+		public long timer_tick;
+		public Client timer_prev, timer_next;
+		
+		// Connected from the local host, which is what allows /stats
+		public boolean admin;
+		
+		// Whether the client opted into the binary protocol with its first byte
+		public boolean negotiated;
+		public boolean binary;
+		
+		// Limits what the client sends, null if unlimited; when it may be read again after going
+		// over a limit, 0 if it isn't throttled; and how often it was throttled lately
+		public TokenBucket bucket;
+		public long throttled_until;
+		public int strikes;
+		public long strikes_since;
+		
+		// Compresses what's sent to the client once it asked for it, else null
+		public Compression compression;
+		
+		// Files the client is sending or being sent, null if none
+		public FileTransfer files;
 
-		public Client() {
+		public Client(SocketChannel channel, EventLoop loop) {
+			this.channel	  = channel;
+			this.loop		  = loop;
 			this.nick 		  = null;
+			this.id			  = -1;
 			this.state 		  = State.INIT;
-			this.current_room = null;
-			this.buffer       = new StringBuffer();
+			this.room		  = null;
+			this.room_slot	  = -1;
+			this.partial	  = null;
+			this.partial_length = 0;
+			// Most connections have little or nothing queued; the deque grows when needed
+			this.outbound	  = new ArrayDeque<>(1);
+			this.closing	  = false;
+			this.write_lock	  = loop == null ? new ReentrantLock() : null;
+			this.file_done	  = loop == null ? write_lock.newCondition() : null;
+		}
+	}
+
+	/*
+	 * Chat room's class. Members are split in one list per event loop, so every loop only
+	 * ever adds, removes and iterates its own connections without any locking. ThreadEngine
+	 * keeps all of them in a single list, guarded by its monitor.
+	 */
+	static class Room {
+		
+		public final String name;
+		public final Members[] members;
+		
+		// Members across all event loops, and how many of them speak the binary protocol
+		public final AtomicInteger population;
+		public final AtomicInteger binary_population;
+		
+		// Limits the room's messages, null if unlimited; shared, so used under its monitor
+		public final TokenBucket bucket;
+		
+		public Room(String name, int n_loops) {
+			
+			this.name		= name;
+			this.members	= new Members[n_loops];
+			this.population = new AtomicInteger();
+			this.binary_population = new AtomicInteger();
+			this.bucket		= room_rate > 0 ? new TokenBucket(room_rate, room_burst, TimingWheel.now()) : null;
+			
+			for(int i = 0; i < n_loops; i++) {
+				
+				this.members[i] = new Members();
+			}
+		}
+	}
+	
+	/*
+	 * The members of a room owned by one event loop, packed at the front of an array. Each
+	 * client remembers its slot, so both add and remove are O(1): a leaving client's slot is
+	 * filled with the last member. Order isn't kept, which nothing relies on.
+	 */
+	static class Members {
+		
+		public Client[] slots = new Client[4];
+		public int size		  = 0;
+		
+		public void add(Client client) {
+			
+			if(size == slots.length) {
+				
+				slots = Arrays.copyOf(slots, size * 2);
+			}
+			
+			slots[size]		 = client;
+			client.room_slot = size++;
+		}
+		
+		public void remove(Client client) {
+			
+			int slot	= client.room_slot;
+			Client last = slots[--size];
+			
+			slots[slot]    = last;
+			last.room_slot = slot;
+			slots[size]	   = null;
+			
+			client.room_slot = -1;
+			
+			// Give memory back once a big room has mostly emptied
+			if(slots.length > 64 && size < slots.length / 4) {
+				
+				slots = Arrays.copyOf(slots, slots.length / 2);
+			}
+		}
+	}
+
+	/*
+	 * A message for many recipients, encoded once per wire format. Both buffers are read-only
+	 * and shared; every recipient writes from its own duplicate. 'binary' is null when nobody
+	 * in the room spoke the binary protocol at the time.
+	 */
+	static class Outgoing {
+		
+		static private final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+		
+		public final ByteBuffer text;
+		public final ByteBuffer binary;
+		
+		// When it was encoded, in System.nanoTime(), only while tracing; see Tracing.FannedOut
+		public final long created = Tracing.enabled ? System.nanoTime() : 0;
+		
+		// Whether compressed recipients share one SHARED block per format, made by the first of
+		// them; EMPTY when the message doesn't fit in one. See Compression.
+		private final boolean deflate_once;
+		private ByteBuffer deflated_text, deflated_binary;
+		
+		public Outgoing(ByteBuffer text, ByteBuffer binary) {
+			
+			this(text, binary, false);
+		}
+		
+		public Outgoing(ByteBuffer text, ByteBuffer binary, boolean deflate_once) {
+			
+			this.text	= text;
+			this.binary = binary;
+			this.deflate_once = deflate_once;
+		}
+		
+		public ByteBuffer viewFor(Client client) {
+			
+			ByteBuffer shared = client.binary ? binary : text;
+			
+			if(shared == null) {
+				return null;
+			}
+			
+			if(deflate_once && client.compression != null) {
+				
+				ByteBuffer deflated = deflated(client.binary);
+				
+				if(deflated.hasRemaining()) {
+					
+					return deflated.duplicate();
+				}
+			}
+			
+			return shared.duplicate();
+		}
+		
+		// Called by every loop with compressed members
+		private synchronized ByteBuffer deflated(boolean binary) {
+			
+			ByteBuffer deflated = binary ? deflated_binary : deflated_text;
+			
+			if(deflated == null) {
+				
+				ByteBuffer shared = binary ? this.binary : this.text;
+				deflated		  = Compression.deflateShared(shared);
+				
+				if(deflated == null) {
+					
+					deflated = EMPTY;
+					
+				} else {
+					
+					metrics.deflated_in.add(shared.remaining());
+					metrics.deflated_out.add(deflated.remaining());
+				}
+				
+				if(binary) {
+					
+					deflated_binary = deflated;
+					
+				} else {
+					
+					deflated_text = deflated;
+				}
+			}
+			
+			return deflated;
 		}
 	}
 
 	/*
 	 * Client' state information.
 	 */
-	private enum State {
+	enum State {
 		INIT,
 		OUTSIDE, 
 		INSIDE
@@ -79,299 +390,1856 @@ public class ChatServer implements Constants {
 
 	static public void main(String args[]) throws Exception {
 		
-		// Parse port from command line
-        int port = Integer.parseInt(args[0]);
+		// Parse port and number of selector threads from command line, then options
+		int port 	= Integer.parseInt(args[0]);
+		int n_loops = Runtime.getRuntime().availableProcessors();
+		
+		String history_directory = null;
+		boolean threads			 = false;
+		int federation_port		 = 0;
+		ArrayList<InetSocketAddress> peers = new ArrayList<>();
+		
+		for(int i = 1; i < args.length; i++) {
+			
+			switch(args[i]) {
+			
+				case "--history": history_directory = args[++i];		  break;
+				case "--replay":  replay = Integer.parseInt(args[++i]); break;
+				case "--engine":  threads = args[++i].equals("threads");	  break;
+				case "--ping":	  ping_interval = Long.parseLong(args[++i]) * 1000; break;
+				case "--idle-timeout": idle_timeout = Long.parseLong(args[++i]) * 1000; break;
+				case "--max-buffered": BufferPool.limit = Long.parseLong(args[++i]) << 20; break;
+				case "--rate":		 rate		 = Integer.parseInt(args[++i]); break;
+				case "--burst":		 burst		 = Integer.parseInt(args[++i]); break;
+				case "--room-rate":	 room_rate	 = Integer.parseInt(args[++i]); break;
+				case "--room-burst": room_burst	 = Integer.parseInt(args[++i]); break;
+				case "--max-strikes": max_strikes = Integer.parseInt(args[++i]); break;
+				case "--max-queued": max_queued = Long.parseLong(args[++i]) << 10; break;
+				case "--slow-consumer": slow_consumer = slowConsumerPolicy(args[++i]); break;
+				case "--federation": federation_port = Integer.parseInt(args[++i]); break;
+				case "--peer":		 peers.add(peerAddress(args[++i])); break;
+				case "--jfr":		 Tracing.start(Paths.get(args[++i])); break;
+				case "--capture":	 capture = new Capture(Paths.get(args[++i])); break;
+				case "--spool":		 FileTransfer.spool_directory = Paths.get(args[++i]); break;
+				case "--max-file":	 FileTransfer.max_size = Long.parseLong(args[++i]) << 20; break;
+				
+				default:
+					n_loops = Integer.parseInt(args[i]);
+			}
+		}
 
-        try {
-	        // Instead of creating a ServerSocket, create a ServerSocketChannel
-	        ServerSocketChannel ssc = ServerSocketChannel.open();
-	
-	        // Set it to non-blocking, so we can use select
-	        ssc.configureBlocking(false);
-	
-	        // Get the Socket connected to this channel, and bind it to the listening port
-	        ServerSocket ss 	  = ssc.socket();
-	        InetSocketAddress isa = new InetSocketAddress(port);
-	        ss.bind(isa);
-	
-	        // Create a new Selector for selecting
-	        Selector selector = Selector.open();
-	
-	        // Register the ServerSocketChannel, so we can listen for incoming connections
-	        ssc.register(selector, SelectionKey.OP_ACCEPT);
-	        System.out.println("Listening on port " + port);
-	
-	        while(true) {
-	            // See if we've had any activity -- either an incoming connection,
-	            // or incoming data on an existing connection
-	            int ready_channels = selector.select();
-	
-	            // If we don't have any activity, loop around and wait again
-	            if(ready_channels == 0) {
-	                continue;
-	            }
-	
-	            // Get the keys corresponding to the activity that has been
-	            // detected, and process them one by one
-	            Set<SelectionKey> selected_keys = selector.selectedKeys();
-	            
-	            Iterator<SelectionKey> key_iterator = selected_keys.iterator();
-	            
-	            while(key_iterator.hasNext()) {
-	            	
-	                // Get a key representing one of bits of I/O activity
-	                SelectionKey key = (SelectionKey) key_iterator.next();
-	
-	                // What kind of activity is it?
-	                if (key.isAcceptable()) {
-	                	
-	                    // It's an incoming connection.  Register this socket with
-	                    // the Selector so we can listen for input on it
-	                    Socket s = ss.accept();
-	                    System.out.println("Got connection from " + s);
-	                    
-	                    // Make sure to make it non-blocking, so we can use a selector on it.
-	                    SocketChannel sc = s.getChannel();
-	                    sc.configureBlocking(false);
-	
-	                    // Register it with the selector, for reading
-	                    sc.register(selector, SelectionKey.OP_READ);
-	                    
-	                    // Create a new Client object
-	                    clients.put(sc, new Client());
-	                    	                    
-	                } else if (key.isReadable()) {
-	
-	                    SocketChannel sc = null;
-	
-	                    try {
-	                        // It's incoming data on a connection -- process it
-	                        sc = (SocketChannel) key.channel();
-	                        
-	                        boolean ok = processInput(sc);
-	
-	                        // If the connection is dead, remove it from the selector and close it
-	                        if(!ok) {
-	                        	
-	                            key.cancel();
-	                            
-	                            Socket s = null;	                            
-	                            try {
-	                                                       	
-	                                s = sc.socket();
-	                                
-	                                Client client = clients.get(sc);
-	                                
-	                                if(client.state == State.INSIDE) {
-	                                	
-	                    				leave(sc, client);
-	                    			}
-	                                
-	                                System.out.println("Closing connection to " + s);
-	                                clients.remove(sc);
-	                                s.close();
-	                                
-	                            } catch(IOException ie) {
-	                            	
-	                                System.err.println("Error closing socket " + s + ": " + ie);
-	                            }
-	                        }
-	                        
-	                    } catch(IOException ie) {
-	                        // On exception, remove this channel from the selector
-	                        key.cancel();
-	
-	                        try {
-	                        	
-	                            sc.close();
-	                            clients.remove(sc);
-	                            
-	                        } catch(IOException ie2) {
-	                        	
-	                            System.out.println(ie2);
-	                        }
-	
-	                        System.out.println("Closed " + sc);
-	                    }
-	                }
-	            }
+		// A client that doesn't answer PING is dropped after as long again
+		if(ping_interval > 0 && idle_timeout == 0) {
+			
+			idle_timeout = 2 * ping_interval;
+		}
+		
+		// A second's worth by default, which also covers the TimingWheel's coarse resume time
+		burst	   = Math.max(burst == 0 ? rate : burst, 1);
+		room_burst = Math.max(room_burst == 0 ? room_rate : room_burst, 1);
+		
+		try {
+			metrics.register();
+			
+			if(history_directory != null) {
+				
+				history = new History(Paths.get(history_directory));
+			}
+			
+			if(federation_port > 0) {
+				
+				federation = new Federation(federation_port, peers);
+				federation.start();
+			}
+			
+			if(threads) {
+				
+				ThreadEngine.serve(port);
+				return;
+			}
+			
+			// Start the event loops that will serve the accepted connections
+			loops = new EventLoop[n_loops];
+			
+			for(int i = 0; i < n_loops; i++) {
+				
+				loops[i] = new EventLoop(i);
+				loops[i].start();
+			}
+			
+			// Instead of creating a ServerSocket, create a ServerSocketChannel
+			ServerSocketChannel ssc = ServerSocketChannel.open();
+	
+			// Set it to non-blocking, so we can use select
+			ssc.configureBlocking(false);
+	
+			// Bind the channel to the listening port, with room for bursts of incoming connections
+			ssc.bind(new InetSocketAddress(port), 1024);
+	
+			// Create a new Selector for selecting
+			Selector selector = Selector.open();
+	
+			// Register the ServerSocketChannel, so we can listen for incoming connections
+			ssc.register(selector, SelectionKey.OP_ACCEPT);
+			Log.info("Listening on port " + port + " with " + n_loops + " event loop(s)");
+	
+			int next_loop = 0;
+			
+			// This thread only accepts; reading and writing happen on the event loops
+			while(true) {
+				
+				int ready_channels = selector.select();
+	
+				// If we don't have any activity, loop around and wait again
+				if(ready_channels == 0) {
+					continue;
+				}
+	
+				Set<SelectionKey> selected_keys = selector.selectedKeys();
+				
+				Iterator<SelectionKey> key_iterator = selected_keys.iterator();
+				
+				while(key_iterator.hasNext()) {
+					
+					SelectionKey key = key_iterator.next();
+	
+					if(key.isAcceptable()) {
+						
+						// It's an incoming connection -- hand it to the next event loop
+						SocketChannel sc = ssc.accept();
+						
+						if(sc == null) {
+							continue;
+						}
+						
+						// Not to a loop that stopped, whose connections would never be served
+						for(int i = 0; i < n_loops && loops[next_loop].stopped; i++) {
+							
+							next_loop = (next_loop + 1) % n_loops;
+						}
+						
+						if(loops[next_loop].stopped) {
+							
+							Log.error("No event loop left, refusing a connection");
+							sc.close();
+							continue;
+						}
+						
+						loops[next_loop].register(sc);
+						next_loop = (next_loop + 1) % n_loops;
+					}
+				}
 	
 				// We remove the selected_keys and key_iterator, because we've dealt with them.
-	            selected_keys.clear();
+				selected_keys.clear();
 			}
-	        
+			
 		} catch (IOException ie) {
 
-			System.err.println(ie);
+			Log.error(ie.toString());
 		}
 	}
-
-	// Just read the message from the socket and send it to stdout
-	static private boolean processInput(SocketChannel sc) throws IOException {
+	
+	// Parses a --peer option, host:port
+	static private InetSocketAddress peerAddress(String peer) {
 		
-		// make buffer ready for writing
-		buffer.clear();
+		int colon = peer.lastIndexOf(':');
 		
-		// Read the message to the buffer
-		sc.read(buffer);
-		buffer.flip();
-
-		// If no data, close the connection
-		if (buffer.limit() == 0) {
+		return new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+	}
+	
+	/**
+	 * Called by the owning event loop once a new connection has been registered.
+	 * 
+	 * @param client - the new client
+	 */
+	static void connected(Client client) {
+		
+		client.id = sessions.add(client);
+		metrics.connections_opened.increment();
+		
+		if(capture != null) {
 			
-			return false;
+			capture.opened(client.id);
+		}
+		
+		try {
+			
+			InetSocketAddress address = (InetSocketAddress) client.channel.getRemoteAddress();
+			
+			Log.info("Got connection #" + client.id + " from " + address);
+			client.admin = address.getAddress().isLoopbackAddress();
+			
+		} catch(IOException ie) { }
+		
+		if(rate > 0) {
+			
+			client.bucket = new TokenBucket(rate, burst, now(client));
+		}
+		
+		// Idle connections are only watched by the event loops
+		if(client.loop != null && idle_timeout > 0) {
+			
+			client.last_active = TimingWheel.now();
+			client.loop.wheel.schedule(client, nextDeadline(client));
+		}
+	}
+	
+	/**
+	 * Removes a session from every structure and closes its connection: its room, whose other
+	 * members are told it LEFT, the session and nickname tables, its timer and its queued output.
+	 * The one way out for connections that were closed by the client, failed or timed out, with
+	 * either engine. Calling it again does nothing.
+	 * 
+	 * @param client - the client to remove
+	 * @param why	 - logged in front of the connection, e.g. "Closed"
+	 */
+	static void close(Client client, String why) {
+		
+		boolean open = client.channel.isOpen();
+		String s	 = describe(client);
+		
+		if(client.state == State.INSIDE) {
+			
+			_leaveRoom(client.channel, client);
+			client.state = State.OUTSIDE;
+		}
+		
+		forget(client);
+		discardOutput(client);
+		releasePartial(client);
+		
+		if(client.compression != null) {
+			
+			client.compression.end();
+		}
+		
+		if(client.loop != null) {
+			
+			client.key.cancel();
+			client.loop.wheel.cancel(client);
+		}
+		
+		if(open) {
+			
+			Log.info(why + " " + s);
+			
+			try {
+				
+				client.channel.close();
+				
+			} catch(IOException ie) {
+				
+				Log.error("Error closing " + s + ": " + ie);
+			}
+		}
+	}
+	
+	// How the log names a connection: its session id, and its remote address while it's open
+	private static String describe(Client client) {
+		
+		try {
+			
+			return "#" + client.id + " " + client.channel.getRemoteAddress();
+			
+		} catch(IOException ie) {
+			
+			return "#" + client.id;
+		}
+	}
+	
+	/**
+	 * Called by the owning event loop when a client's deadline in its TimingWheel is due: sends
+	 * PING to a client that went quiet, and drops one that stayed quiet for idle_timeout.
+	 * 
+	 * @param client - the client
+	 * @param now	 - the current time, see TimingWheel.now()
+	 */
+	static void timedOut(Client client, long now) {
+		
+		// Resumed once its nickname is settled, see claimed()
+		if(client.throttled_until == SUSPENDED) {
+			return;
 		}
 		
-		// Decode and print the message to stdout		
-		String chunk = decoder.decode(buffer).toString();
+		if(client.throttled_until != 0) {
+			
+			try {
+				
+				resume(client);
+				
+			} catch(IOException ie) {
 				
-		// Create a new buffer for the connection
-		Client client = clients.get(sc);		
+				close(client, "Closed");
+			}
+			
+			return;
+		}
 		
-		StringBuffer command = client.buffer;
+		long idle = now - client.last_active;
 		
-		// Buffering until a line termination is received
-		if(!chunk.endsWith("\n")) {
+		if(idle >= idle_timeout) {
 			
-			client.buffer.append(chunk);
-								
-		} else {
+			close(client, "Timed out");
+			return;
+		}
+		
+		if(ping_interval > 0 && idle >= ping_interval && !client.pinged) {
 			
-			command.append(chunk);
-			chunk = command.toString();
-			command = new StringBuffer();
-			client.buffer = command;
-	    
-		    // if it is a command
-		    if(chunk.charAt(0) == '/' && chunk.charAt(1) != '/') {
-		    	
-		    	command_scanner = new Scanner(chunk);
-		    	
-		    	String command_type = command_scanner.next();
-		    	
-		    	switch(command_type) {
-		    	
-		    		case NICK:
-		    			
-		    			if(!command_scanner.hasNext()) {
-		    				
-		    				sendStatusMessage(sc, ERROR);	// argument nickname is missing
-		    				break;
-		    			}
-		    			
-		    			// read specified nickname
-		    			nick(sc, client, command_scanner.next());
-		    			break;
-		    			
-	    			case JOIN:
-	    				
-						if(!command_scanner.hasNext()) {
-		    				
-		    				sendStatusMessage(sc, ERROR);	// argument room_name is missing
-		    				break;
-		    			}
-		    			
-	    				// read chat room name
-		    			join(sc, client, command_scanner.next());
-		    			break;
-		    			
-	    			case LEAVE:
-	    				
-	    				if(command_scanner.hasNext()) {
-		    				
-		    				sendStatusMessage(sc, ERROR);	// too much arguments
-		    				break;
-		    			}
-	    				
-	    				leave(sc, client);
-	    				break;
-	    				
-					case BYE:
-	    				
-						if(command_scanner.hasNext()) {
-		    				
-		    				sendStatusMessage(sc, ERROR);	// too much arguments
-		    				break;
-		    			}
-
-	    				bye(sc, client);
-	    				break;
-	    				
-					case PRIVATE:
-						
-						if(!command_scanner.hasNext()) {
-		    				
-		    				sendStatusMessage(sc, ERROR);	// recipient is missing
-		    				break;
-		    			}
-						
-						String recipient = command_scanner.next();
-						
-						if(!command_scanner.hasNextLine()) {
-		    				
-		    				sendStatusMessage(sc, ERROR);	// message content is missing
-		    				break;
-		    			}
-						
-						chunk = command_scanner.nextLine().trim();
-	    				
-	    				sendPrivateMessage(sc, client, recipient, chunk.toString());
-	    				break;
-	    				
-					default:
-						
-						sendStatusMessage(sc, ERROR);		// not a valid command
-						break;
-		    	}
-		    	
-		    } else {		// not a command; is a regular message
-		    	
-		    	if(chunk.charAt(0) == '/') {
-		    		
-		    		chunk = chunk.substring(1);
-		    	}
-		    	
-		    	broadcastMessage(sc, client, chunk);
-		    }
+			try {
+				
+				sendStatusMessage(client, PING);
+				client.pinged = true;
+				
+			} catch(IOException ie) {
+				
+				close(client, "Closed");
+				return;
+			}
 		}
-
-		return true;
+		
+		client.loop.wheel.schedule(client, nextDeadline(client));
 	}
 	
+	// When a client that stays quiet is due for PING, or for being dropped
+	private static long nextDeadline(Client client) {
+		
+		return client.last_active + (ping_interval > 0 && !client.pinged ? ping_interval : idle_timeout);
+	}
 	
-	/*****************************************************
-	 * SEND MESSAGES
-	 *****************************************************/
+	/**
+	 * Takes a token from the client's bucket, for a line or frame it just ran.
+	 * 
+	 * @param client - the client
+	 * @return whether the client went over a limit, its own or its room's, and must be throttled
+	 */
+	private static boolean overLimit(Client client) {
+		
+		if(client.bucket != null) {
+			
+			long now  = now(client);
+			long wait = client.bucket.take(now);
+			
+			if(wait > 0) {
+				
+				client.throttled_until = Math.max(client.throttled_until, now + wait);
+			}
+		}
+		
+		return client.throttled_until != 0;
+	}
 	
 	/**
-     * Sends a status message to the client.
+	 * Stops reading from a client that went over a limit, until throttled_until. Its unread
+	 * lines stay in its partial buffer meanwhile. A client throttled more than max_strikes
+	 * times in a minute is disconnected.
+	 * 
+	 * @param client - the client, whose throttled_until is set
+	 */
+	private static void throttle(Client client) {
+		
+		// Closed, or about to be as a slow consumer
+		if(!client.channel.isOpen() || client.loop != null && !client.key.isValid()) {
+			return;
+		}
+		
+		// Waiting for the other nodes, which isn't the client's doing
+		if(client.throttled_until == SUSPENDED) {
+			
+			client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_READ);
+			return;
+		}
+		
+		long now = now(client);
+		
+		metrics.throttled.increment();
+		
+		if(now - client.strikes_since > STRIKE_WINDOW) {
+			
+			client.strikes		 = 0;
+			client.strikes_since = now;
+		}
+		
+		if(max_strikes > 0 && ++client.strikes > max_strikes) {
+			
+			metrics.flood_disconnects.increment();
+			close(client, "Flooding from");
+			return;
+		}
+		
+		// With ThreadEngine, the connection's own thread sleeps instead, see resume()
+		if(client.loop != null) {
+			
+			client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_READ);
+			client.loop.wheel.schedule(client, client.throttled_until);
+		}
+	}
+	
+	/**
+	 * Reads from a throttled client again, once its time is up: runs the lines it had sent
+	 * meanwhile, which may throttle it again, and then reads from it.
+	 * 
+	 * @param client - the client
+	 */
+	static void resume(Client client) throws IOException {
+		
+		client.throttled_until = 0;
+		client.last_active	   = now(client);
+		
+		if(client.partial != null) {
+			
+			processPartial(client.channel, client, 0);
+		}
+		
+		if(client.loop == null || client.throttled_until != 0 || client.closing || !client.key.isValid()) {
+			return;
+		}
+		
+		client.key.interestOps(client.key.interestOps() | SelectionKey.OP_READ);
+		
+		if(idle_timeout > 0) {
+			
+			client.loop.wheel.schedule(client, nextDeadline(client));
+		}
+	}
+	
+	// The owning event loop's time, or the clock's with ThreadEngine
+	private static long now(Client client) {
+		
+		return client.loop != null ? client.loop.now : TimingWheel.now();
+	}
+	
+	/**
+	 * Drops a connection from the session table and releases its nickname.
+	 * 
+	 * @param client - the client to drop
+	 */
+	static void forget(Client client) {
+		
+		// Recorded while the id is still the client's, before a new connection can get it
+		if(capture != null && sessions.get(client.id) == client) {
+			
+			capture.closed(client.id);
+		}
+		
+		if(sessions.remove(client)) {
+			
+			metrics.connections_closed.increment();
+		}
+		
+		if(client.nick != null && nicknames.remove(client.nick, client) && federation != null) {
+			
+			federation.nickChanged(client.nick);
+		}
+	}
+
+	/**
+	 * Drops output still queued for a connection that is being closed.
+	 * 
+	 * @param client - the closed client
+	 */
+	static void discardOutput(Client client) {
+		
+		metrics.queued_buffers.add(-client.outbound.size());
+		client.outbound.clear();
+		client.queued_bytes = 0;
+		
+		FileTransfer.discard(client);
+	}
+	
+	/**
+	 * Reads what's available on the connection and runs it. A client with no incomplete line
+	 * is read into the event loop's buffer; one with an incomplete line or frame is read
+	 * straight into its partial buffer, right after what it already holds, so the bytes are
+	 * never copied to be joined.
+	 * 
+	 * @param sc	 - the socket channel
+	 * @param client - the client that sent the data
+	 * @return false if the client closed the connection
+	 */
+	static boolean processInput(SocketChannel sc, Client client) throws IOException {
+		
+		// The content of a file being sent goes to its spool, not through the lines
+		if(client.files != null && client.files.upload != null) {
+			
+			return FileTransfer.receive(client, client.loop.buffer);
+		}
+		
+		if(client.partial != null) {
+			
+			return continuePartial(sc, client);
+		}
+		
+		// Each event loop has its own read buffer
+		ByteBuffer buffer = client.loop.buffer;
+		
+		// make buffer ready for writing
+		buffer.clear();
+		
+		// Read the message to the buffer; if end of stream, close the connection
+		Tracing.Read read = Tracing.beginRead();
+		int n			  = sc.read(buffer);
+		
+		if(n < 0) {
+			
+			return false;
+		}
+		
+		Tracing.commit(read, client, n);
+		metrics.bytes_read.add(n);
+		
+		// Any input counts as an answer to PING
+		client.last_active = client.loop.now;
+		client.pinged	   = false;
+		
+		processReceived(sc, client, buffer.array(), buffer.position());
+		
+		return true;
+	}
+	
+	private static boolean continuePartial(SocketChannel sc, Client client) throws IOException {
+		
+		// Make room first: a frame's header tells how much it needs, a line may need anything
+		if(client.partial_length == client.partial.capacity) {
+			
+			int needed = client.partial_length + 1;
+			
+			if(client.binary && client.partial_length >= BinaryProtocol.HEADER) {
+				
+				needed = BinaryProtocol.HEADER + BinaryProtocol.readLength(client.partial.array, client.partial.offset + 1);
+			}
+			
+			if(!growPartial(client, needed)) {
+				
+				return true;
+			}
+		}
+		
+		ByteBuffer view = client.partial.view;
+		
+		view.limit(view.capacity()).position(client.partial_length);
+		
+		Tracing.Read read = Tracing.beginRead();
+		int n			  = sc.read(view);
+		
+		if(n < 0) {
+			
+			return false;
+		}
+		
+		Tracing.commit(read, client, n);
+		metrics.bytes_read.add(n);
+		
+		client.last_active = client.loop.now;
+		client.pinged	   = false;
+		
+		int scanned			  = client.partial_length;
+		client.partial_length += n;
+		
+		processPartial(sc, client, scanned);
+		
+		return true;
+	}
+	
+	/**
+	 * Runs what the client sent, as read into data[0, limit) by either engine. The bytes are
+	 * handled in place; only a trailing incomplete line or frame is copied, into a partial
+	 * buffer borrowed from the event loop's BufferPool until it's complete.
+	 * 
+	 * @param sc	 - the socket channel
+	 * @param client - the client that sent the data
+	 * @param data	 - the bytes read
+	 * @param limit	 - how many bytes were read
+	 */
+	static void processReceived(SocketChannel sc, Client client, byte[] data, int limit) throws IOException {
+		
+		int start = 0;
+		
+		// The very first byte tells which protocol the client speaks
+		if(!client.negotiated && limit > 0) {
+			
+			client.negotiated = true;
+			
+			if(data[0] == BinaryProtocol.MAGIC) {
+				
+				client.binary = true;
+				start		  = 1;
+			}
+		}
+		
+		if(client.partial == null) {
+			
+			process(sc, client, data, start, start, limit, false);
+			return;
+		}
+		
+		// Join the new bytes to the incomplete line or frame; ThreadEngine reads this way
+		int scanned = client.partial_length;
+		int length	= limit - start;
+		
+		if(scanned + length > client.partial.capacity && !growPartial(client, scanned + length)) {
+			return;
+		}
+		
+		System.arraycopy(data, start, client.partial.array, client.partial.offset + scanned, length);
+		client.partial_length += length;
+		
+		processPartial(sc, client, scanned);
+	}
+	
+	// Runs what's in the client's partial buffer, whose first 'scanned' bytes hold no '\n'
+	private static void processPartial(SocketChannel sc, Client client, int scanned) throws IOException {
+		
+		BufferPool.Chunk chunk = client.partial;
+		
+		process(sc, client, chunk.array, chunk.offset, chunk.offset + scanned, chunk.offset + client.partial_length, true);
+	}
+	
+	/**
+	 * Runs every complete line or frame in data[start, limit), and keeps what's left over for
+	 * the next read.
+	 * 
+	 * @param sc	   - the socket channel
+	 * @param client   - the client that sent the data
+	 * @param data	   - the bytes read
+	 * @param start	   - where the unprocessed bytes start
+	 * @param scan	   - where to start looking for '\n'
+	 * @param limit	   - where the bytes read end
+	 * @param in_place - whether data is the client's partial buffer
+	 */
+	private static void process(SocketChannel sc, Client client, byte[] data, int start, int scan, int limit, boolean in_place) throws IOException {
+		
+		if(client.binary) {
+			
+			processFrames(sc, client, data, start, limit, in_place);
+			return;
+		}
+		
+		Tracing.Framed framed = Tracing.beginFramed();
+		
+		for(int i = scan; i < limit; i++) {
+			
+			if(data[i] != '\n') {
+				continue;
+			}
+			
+			Tracing.commit(framed, client, i - start);
+			
+			if(capture != null) {
+				
+				capture.line(client.id, data, start, i - start);
+			}
+			
+			Tracing.Dispatched dispatched = Tracing.beginDispatched();
+			processLine(sc, client, data, start, i - start);
+			Tracing.commit(dispatched, client, (byte) 0, data, start, i - start);
+			
+			framed = Tracing.beginFramed();
+			start  = i + 1;
+			
+			// Don't run what follows a /bye
+			if(client.closing || !sc.isOpen()) {
+				
+				return;
+			}
+			
+			// A /send is followed by the file's content
+			if(client.files != null && client.files.upload != null) {
+				
+				start = FileTransfer.take(client, data, start, limit);
+				i	  = start - 1;
+			}
+			
+			// Nor what follows going over a limit, for now
+			if(overLimit(client)) {
+				
+				keepPartial(client, data, start, limit, in_place);
+				throttle(client);
+				return;
+			}
+		}
+		
+		// Buffering until a line termination is received
+		keepPartial(client, data, start, limit, in_place);
+	}
+	
+	/**
+	 * Runs every complete binary frame in data[start, limit). Like lines, frames are handled in
+	 * place, and only an incomplete trailing frame is kept in the client's partial buffer.
+	 * 
+	 * @param sc	   - the socket channel
+	 * @param client   - the client that sent the data
+	 * @param data	   - the bytes read
+	 * @param start	   - where the unprocessed bytes start
+	 * @param limit	   - where the bytes read end
+	 * @param in_place - whether data is the client's partial buffer
+	 */
+	static void processFrames(SocketChannel sc, Client client, byte[] data, int start, int limit, boolean in_place) throws IOException {
+		
+		int pos = start;
+		
+		while(limit - pos >= BinaryProtocol.HEADER) {
+			
+			Tracing.Framed framed = Tracing.beginFramed();
+			int length			  = BinaryProtocol.readLength(data, pos + 1);
+			
+			if(limit - pos - BinaryProtocol.HEADER < length) {
+				break;
+			}
+			
+			Tracing.commit(framed, client, BinaryProtocol.HEADER + length);
+			
+			if(capture != null) {
+				
+				capture.frame(client.id, data, pos, BinaryProtocol.HEADER + length);
+			}
+			
+			Tracing.Dispatched dispatched = Tracing.beginDispatched();
+			processFrame(sc, client, data[pos], data, pos + BinaryProtocol.HEADER, length);
+			Tracing.commit(dispatched, client, data[pos], data, pos + BinaryProtocol.HEADER, length);
+			
+			pos += BinaryProtocol.HEADER + length;
+			
+			// Don't run what follows a BYE
+			if(client.closing || !sc.isOpen()) {
+				
+				return;
+			}
+			
+			// A SEND is followed by the file's content
+			if(client.files != null && client.files.upload != null) {
+				
+				pos = FileTransfer.take(client, data, pos, limit);
+			}
+			
+			// Nor what follows going over a limit, for now
+			if(overLimit(client)) {
+				
+				keepPartial(client, data, pos, limit, in_place);
+				throttle(client);
+				return;
+			}
+		}
+		
+		keepPartial(client, data, pos, limit, in_place);
+	}
+	
+	/**
+	 * Runs one binary frame: checks its fields and calls the same handlers as the text protocol.
+	 * 
+	 * @param sc	  - the socket channel
+	 * @param client  - the client that sent the frame
+	 * @param opcode  - the frame's opcode
+	 * @param payload - the buffer holding the frame's payload
+	 * @param offset  - where the payload starts in 'payload'
+	 * @param length  - the payload's length
+	 */
+	static void processFrame(SocketChannel sc, Client client, byte opcode, byte[] payload, int offset, int length) throws IOException {
+		
+		// Locate up to three fields
+		int end	   = offset + length;
+		int pos	   = offset;
+		int fields = 0;
+		int first  = 0, first_length  = 0;
+		int second = 0, second_length = 0;
+		int third  = 0, third_length  = 0;
+		
+		while(pos < end) {
+			
+			if(end - pos < 2 || end - pos - 2 < BinaryProtocol.readLength(payload, pos)) {
+				
+				metrics.commands[ServerMetrics.INVALID].increment();
+				sendStatusMessage(client, ERROR);		// malformed payload
+				return;
+			}
+			
+			int field_length = BinaryProtocol.readLength(payload, pos);
+			pos += 2;
+			
+			if(fields == 0) {
+				
+				first		 = pos;
+				first_length = field_length;
+				
+			} else if(fields == 1) {
+				
+				second		  = pos;
+				second_length = field_length;
+				
+			} else if(fields == 2) {
+				
+				third		 = pos;
+				third_length = field_length;
+			}
+			
+			fields++;
+			pos += field_length;
+		}
+		
+		switch(opcode) {
+		
+			case BinaryProtocol.NICK:
+				
+				if(fields != 1 || !BinaryProtocol.isValidField(payload, first, first_length, true)) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.NICK].increment();
+				nick(sc, client, new String(payload, first, first_length, charset));
+				return;
+				
+			case BinaryProtocol.JOIN:
+				
+				if(fields != 1 || !BinaryProtocol.isValidField(payload, first, first_length, true)) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.JOIN].increment();
+				join(sc, client, new String(payload, first, first_length, charset));
+				return;
+				
+			case BinaryProtocol.LEAVE:
+				
+				if(fields != 0) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.LEAVE].increment();
+				leave(sc, client);
+				return;
+				
+			case BinaryProtocol.BYE:
+				
+				if(fields != 0) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.BYE].increment();
+				bye(sc, client);
+				return;
+				
+			case BinaryProtocol.PRIVATE:
+				
+				if(fields != 2 || second_length == 0
+				   || !BinaryProtocol.isValidField(payload, first, first_length, true)
+				   || !BinaryProtocol.isValidField(payload, second, second_length, false)) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.PRIVATE].increment();
+				sendPrivateMessage(sc, client, new String(payload, first, first_length, charset),
+								   payload, second, second_length);
+				return;
+				
+			case BinaryProtocol.MESSAGE:
+				
+				if(fields != 1 || !BinaryProtocol.isValidField(payload, first, first_length, false)) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.MESSAGE].increment();
+				broadcastMessage(sc, client, payload, first, first_length);
+				return;
+				
+			case BinaryProtocol.SEND:
+				
+				if(fields != 3
+				   || !BinaryProtocol.isValidField(payload, first, first_length, true)
+				   || !BinaryProtocol.isValidField(payload, second, second_length, true)) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.SEND].increment();
+				FileTransfer.start(client, new String(payload, first, first_length, charset),
+								   Arrays.copyOfRange(payload, second, second + second_length),
+								   FileTransfer.parseSize(payload, third, third + third_length));
+				return;
+				
+			case BinaryProtocol.STATS:
+				
+				if(fields != 0 || !client.admin) {
+					break;
+				}
+				
+				sendStats(client);
+				return;
+				
+			case BinaryProtocol.PONG:
+				
+				return;
+				
+			case BinaryProtocol.COMPRESS:
+				
+				if(fields != 0) {
+					break;
+				}
+				
+				compress(client);
+				return;
+				
+			case BinaryProtocol.HISTORY:
+				
+				int n = fields == 0 ? replay : parseCount(payload, first, first + first_length);
+				
+				if(fields > 1 || n < 0) {
+					break;
+				}
+				
+				metrics.commands[ServerMetrics.HISTORY].increment();
+				history(sc, client, n);
+				return;
+		}
+		
+		metrics.commands[ServerMetrics.INVALID].increment();
+		sendStatusMessage(client, ERROR);		// unknown opcode or bad fields
+	}
+	
+	/**
+	 * Keeps the incomplete line or frame in data[from, to) in the client's partial buffer,
+	 * borrowing one if needed, or gives the buffer back if there's nothing left over.
+	 * 
+	 * @param client   - the client
+	 * @param data	   - the bytes read
+	 * @param from	   - where the incomplete bytes start
+	 * @param to	   - where they end
+	 * @param in_place - whether data is the client's partial buffer
+	 */
+	private static void keepPartial(Client client, byte[] data, int from, int to, boolean in_place) {
+		
+		int length = to - from;
+		
+		if(length == 0) {
+			
+			releasePartial(client);
+			return;
+		}
+		
+		if(in_place) {
+			
+			// Move it to the front of the buffer, which it already is in most of the time
+			if(from != client.partial.offset) {
+				
+				System.arraycopy(data, from, data, client.partial.offset, length);
+			}
+			
+		} else {
+			
+			if(!borrowPartial(client, length)) {
+				return;
+			}
+			
+			System.arraycopy(data, from, client.partial.array, client.partial.offset, length);
+		}
+		
+		client.partial_length = length;
+	}
+	
+	/**
+	 * Replaces the client's partial buffer with one that holds at least 'needed' bytes, keeping
+	 * its content. Closes the connection if the line is longer than anybody may send, or if
+	 * the pools are out of memory.
+	 * 
+	 * @param client - the client
+	 * @param needed - how many bytes the buffer must hold
+	 * @return false if the connection was closed
+	 */
+	private static boolean growPartial(Client client, int needed) {
+		
+		BufferPool.Chunk old = client.partial;
+		int length			 = client.partial_length;
+		
+		client.partial = null;
+		
+		// Grow geometrically, short of the limit, unless more is needed right away
+		if(!borrowPartial(client, Math.max(needed, Math.min(2 * old.capacity, BufferPool.MAX_PARTIAL)))) {
+			
+			release(client, old);
+			return false;
+		}
+		
+		System.arraycopy(old.array, old.offset, client.partial.array, client.partial.offset, length);
+		client.partial_length = length;
+		
+		release(client, old);
+		
+		return true;
+	}
+	
+	// Gives the client an empty partial buffer of at least 'size' bytes, or closes the connection
+	private static boolean borrowPartial(Client client, int size) {
+		
+		if(size > BufferPool.MAX_PARTIAL) {
+			
+			close(client, "Line too long from");
+			return false;
+		}
+		
+		client.partial		  = client.loop != null ? client.loop.pool.borrow(size) : BufferPool.unpooled(size);
+		client.partial_length = 0;
+		
+		if(client.partial == null) {
+			
+			close(client, "Out of input buffers for");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gives the client's partial buffer back to its pool, if it holds one.
+	 * 
+	 * @param client - the client
+	 */
+	static void releasePartial(Client client) {
+		
+		if(client.partial != null) {
+			
+			release(client, client.partial);
+			client.partial		  = null;
+			client.partial_length = 0;
+		}
+	}
+	
+	private static void release(Client client, BufferPool.Chunk chunk) {
+		
+		if(client.loop != null) {
+			
+			client.loop.pool.release(chunk);
+			
+		} else {
+			
+			metrics.partial_buffers.decrement();
+		}
+	}
+	
+	private static boolean isSpace(byte b) {
+		
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+	
+	// Index of the first non-space byte in line[from, end)
+	private static int skipSpaces(byte[] line, int from, int end) {
+		
+		while(from < end && isSpace(line[from])) {
+			from++;
+		}
+		
+		return from;
+	}
+	
+	// Index just past the token starting at line[from]
+	private static int tokenEnd(byte[] line, int from, int end) {
+		
+		while(from < end && !isSpace(line[from])) {
+			from++;
+		}
+		
+		return from;
+	}
+	
+	// The decimal number in b[from, to), or -1 if it isn't one
+	private static int parseCount(byte[] b, int from, int to) {
+		
+		if(from == to || to - from > 9) {
+			return -1;
+		}
+		
+		int n = 0;
+		
+		for(int i = from; i < to; i++) {
+			
+			if(b[i] < '0' || b[i] > '9') {
+				return -1;
+			}
+			
+			n = n * 10 + (b[i] - '0');
+		}
+		
+		return n;
+	}
+	
+	private static boolean matches(byte[] line, int from, int to, byte[] word) {
+		
+		if(to - from != word.length) {
+			return false;
+		}
+		
+		for(int i = 0; i < word.length; i++) {
+			
+			if(line[from + i] != word[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Runs one line received from the client, without its '\n'.
+	 * 
+	 * @param sc	 - the socket channel
+	 * @param client - the client that sent the line
+	 * @param line	 - the buffer holding the line
+	 * @param offset - where the line starts in 'line'
+	 * @param length - the line's length
+	 */
+	static void processLine(SocketChannel sc, Client client, byte[] line, int offset, int length) throws IOException {
+		
+		int end = offset + length;
+		
+	    // if it is a command
+	    if(length > 0 && line[offset] == '/' && (length == 1 || line[offset + 1] != '/')) {
+	    	
+	    	int verb_end  = tokenEnd(line, offset, end);
+	    	int arg_start = skipSpaces(line, verb_end, end);
+	    	int arg_end   = tokenEnd(line, arg_start, end);
+	    	boolean has_arg = arg_start < end;
+	    	
+	    	if(matches(line, offset, verb_end, NICK_BYTES)) {
+	    		
+	    		if(!has_arg) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// argument nickname is missing
+	    			return;
+	    		}
+	    		
+	    		// read specified nickname
+	    		metrics.commands[ServerMetrics.NICK].increment();
+	    		nick(sc, client, new String(line, arg_start, arg_end - arg_start, charset));
+	    		
+	    	} else if(matches(line, offset, verb_end, JOIN_BYTES)) {
+	    		
+	    		if(!has_arg) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// argument room_name is missing
+	    			return;
+	    		}
+	    		
+	    		// read chat room name
+	    		metrics.commands[ServerMetrics.JOIN].increment();
+	    		join(sc, client, new String(line, arg_start, arg_end - arg_start, charset));
+	    		
+	    	} else if(matches(line, offset, verb_end, LEAVE_BYTES)) {
+	    		
+	    		if(has_arg) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// too much arguments
+	    			return;
+	    		}
+	    		
+	    		metrics.commands[ServerMetrics.LEAVE].increment();
+	    		leave(sc, client);
+	    		
+	    	} else if(matches(line, offset, verb_end, BYE_BYTES)) {
+	    		
+	    		if(has_arg) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// too much arguments
+	    			return;
+	    		}
+	    		
+	    		metrics.commands[ServerMetrics.BYE].increment();
+	    		bye(sc, client);
+	    		
+	    	} else if(matches(line, offset, verb_end, PRIVATE_BYTES)) {
+	    		
+	    		if(!has_arg) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// recipient is missing
+	    			return;
+	    		}
+	    		
+	    		// The message is the rest of the line, trimmed
+	    		int body_start = skipSpaces(line, arg_end, end);
+	    		int body_end   = end;
+	    		
+	    		while(body_end > body_start && isSpace(line[body_end - 1])) {
+	    			body_end--;
+	    		}
+	    		
+	    		if(body_start == body_end) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// message content is missing
+	    			return;
+	    		}
+	    		
+	    		metrics.commands[ServerMetrics.PRIVATE].increment();
+	    		sendPrivateMessage(sc, client, new String(line, arg_start, arg_end - arg_start, charset),
+	    						   line, body_start, body_end - body_start);
+	    		
+	    	} else if(matches(line, offset, verb_end, STATS_BYTES) && client.admin) {
+	    		
+	    		sendStats(client);
+	    		
+	    	} else if(matches(line, offset, verb_end, PONG_BYTES)) {
+	    		
+	    		// Nothing to do: reading it already marked the client as alive
+	    		
+	    	} else if(matches(line, offset, verb_end, COMPRESS_BYTES) && !has_arg) {
+	    		
+	    		compress(client);
+	    		
+	    	} else if(matches(line, offset, verb_end, SEND_BYTES)) {
+	    		
+	    		int name_start = skipSpaces(line, arg_end, end);
+	    		int name_end   = tokenEnd(line, name_start, end);
+	    		int size_start = skipSpaces(line, name_end, end);
+	    		int size_end   = tokenEnd(line, size_start, end);
+	    		
+	    		if(!has_arg || name_start == name_end || skipSpaces(line, size_end, end) < end) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// missing or too much arguments
+	    			return;
+	    		}
+	    		
+	    		metrics.commands[ServerMetrics.SEND].increment();
+	    		FileTransfer.start(client, new String(line, arg_start, arg_end - arg_start, charset),
+	    						   Arrays.copyOfRange(line, name_start, name_end),
+	    						   FileTransfer.parseSize(line, size_start, size_end));
+	    		
+	    	} else if(matches(line, offset, verb_end, HISTORY_BYTES)) {
+	    		
+	    		int n = has_arg ? parseCount(line, arg_start, arg_end) : replay;
+	    		
+	    		if(n < 0 || skipSpaces(line, arg_end, end) < end) {
+	    			
+	    			sendStatusMessage(client, ERROR);	// not a count, or too much arguments
+	    			return;
+	    		}
+	    		
+	    		metrics.commands[ServerMetrics.HISTORY].increment();
+	    		history(sc, client, n);
+	    		
+	    	} else {
+	    		
+	    		metrics.commands[ServerMetrics.INVALID].increment();
+	    		sendStatusMessage(client, ERROR);		// not a valid command
+	    	}
+	    	
+	    } else {		// not a command; is a regular message
+	    	
+	    	// An escaped leading '/' is sent as a single one
+	    	if(length > 0 && line[offset] == '/') {
+	    		
+	    		offset++;
+	    		length--;
+	    	}
+	    	
+	    	metrics.commands[ServerMetrics.MESSAGE].increment();
+	    	broadcastMessage(sc, client, line, offset, length);
+	    }
+	}
+	
+	
+	/*****************************************************
+	 * SEND MESSAGES
+	 *****************************************************/
+	
+	/**
+     * Sends a status message to the client.
+     * 
+     * @param client  - the receiving client
+     * @param message - the status message
+     */
+    static void sendStatusMessage(Client client, String message) throws IOException {
+    	
+    	if(client.binary) {
+    		
+    		switch(message) {
+    		
+    			case OK:	  write(client, BinaryProtocol.status(BinaryProtocol.OK));	  return;
+    			case ERROR:	  write(client, BinaryProtocol.status(BinaryProtocol.ERROR)); return;
+    			case GOODBYE: write(client, BinaryProtocol.status(BinaryProtocol.BYE));	  return;
+    			case PING:	  write(client, BinaryProtocol.status(BinaryProtocol.PING));  return;
+    			case COMPRESSED: write(client, BinaryProtocol.status(BinaryProtocol.COMPRESS)); return;
+    			
+    			default:
+    				throw new IllegalArgumentException("no binary status for " + message);
+    		}
+    	}
+    	
+        ByteBuffer bb = ByteBuffer.wrap(message.getBytes());
+        write(client, bb);
+    }
+    
+    /**
+     * Sends the metrics summary to an admin client.
+     * 
+     * @param client - the receiving client
+     */
+    static void sendStats(Client client) throws IOException {
+    	
+    	String summary = metrics.getSummary();
+    	
+    	if(client.binary) {
+    		
+    		write(client, BinaryProtocol.encode(false, BinaryProtocol.STATS, summary.getBytes(charset)));
+    		
+    	} else {
+    		
+    		sendStatusMessage(client, "STATS " + summary + "\n");
+    	}
+    }
+    
+    /**
+     * Queues a buffer for the client without blocking. Output is coalesced: the event loop
+     * flushes each client it wrote to once, at the end of its pass, with a single gathering
+     * write. A client whose queue already fills a whole batch is flushed right away. Must be
+     * called on the event loop that owns the client.
+     * 
+     * @param client - the receiving client
+     * @param bb	 - the bytes to send
+     */
+    static void write(Client client, ByteBuffer bb) throws IOException {
+    	
+    	if(client.loop == null) {
+    		
+    		writeBlocking(client, bb);
+    		return;
+    	}
+    	
+    	// The connection is already gone
+    	if(!client.key.isValid()) {
+    		return;
+    	}
+    	
+    	if(client.queued_bytes + bb.remaining() > max_queued && !makeRoom(client, bb)) {
+    		return;
+    	}
+    	
+    	// Only once it's certain to be sent, since it goes into the connection's stream
+    	if(client.compression != null && (bb = deflate(client, bb)) == null) {
+    		return;
+    	}
+    	
+    	client.outbound.add(bb);
+    	client.queued_bytes += bb.remaining();
+    	metrics.queued_buffers.increment();
+    	
+    	// The socket is full; the loop flushes once it's writable again
+    	if((client.key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+    		return;
+    	}
+    	
+    	if(client.outbound.size() >= EventLoop.GATHER) {
+    		
+    		flush(client);
+    		
+    	} else if(!client.dirty) {
+    		
+    		client.loop.markDirty(client);
+    	}
+    }
+    
+    /**
+     * Applies the slow consumer policy to a client whose queued output would go over its
+     * budget. Room messages are what gets dropped; other lines, such as private messages and
+     * statuses, may still be queued up to twice the budget. A client past that, or past the
+     * budget under the DISCONNECT policy, is disconnected.
+     * 
+     * @param client - the receiving client
+     * @param bb	 - the bytes to send
+     * @return whether to queue bb
+     */
+    private static boolean makeRoom(Client client, ByteBuffer bb) {
+    	
+    	int length = bb.remaining();
+    	
+    	if(!isRoomMessage(client, bb)) {
+    		
+    		if(client.queued_bytes + length <= 2 * max_queued) {
+    			
+    			return true;
+    		}
+    		
+    	} else if(slow_consumer == DROP_NEW) {
+    		
+    		metrics.slow_dropped.increment();
+    		return false;
+    		
+    	} else if(slow_consumer == DROP_OLDEST) {
+    		
+    		Iterator<ByteBuffer> queued = client.outbound.iterator();
+    		
+    		// The first one may be partly written already
+    		if(queued.hasNext()) {
+    			
+    			queued.next();
+    		}
+    		
+    		while(client.queued_bytes + length > max_queued && queued.hasNext()) {
+    			
+    			ByteBuffer old = queued.next();
+    			
+    			if(isRoomMessage(client, old)) {
+    				
+    				queued.remove();
+    				client.queued_bytes -= old.remaining();
+    				metrics.queued_buffers.decrement();
+    				metrics.slow_dropped.increment();
+    			}
+    		}
+    		
+    		if(client.queued_bytes + length <= max_queued) {
+    			
+    			return true;
+    		}
+    		
+    		metrics.slow_dropped.increment();
+    		return false;
+    	}
+    	
+    	// Likely while delivering to its room, so it's closed once that's done
+    	metrics.slow_disconnects.increment();
+    	discardOutput(client);
+    	client.key.cancel();
+    	client.loop.execute(() -> close(client, "Too slow, disconnected"));
+    	
+    	return false;
+    }
+    
+    // Room messages are the only MESSAGE lines or frames; history replays are made of them too.
+    // Compressed, only SHARED blocks are room messages that can be dropped.
+    private static boolean isRoomMessage(Client client, ByteBuffer bb) {
+    	
+    	return bb.hasRemaining() && (bb.get(bb.position()) == (client.binary ? BinaryProtocol.MESSAGE : MESSAGE_PREFIX[0])
+    								 || Compression.isBlock(bb));
+    }
+    
+    /**
+     * Compresses a buffer for a client that asked for it, unless it's a SHARED block already.
+     * 
+     * @param client - the receiving client
+     * @param bb	 - the bytes to send
+     * @return the bytes to send instead, or null if the client was closed
+     */
+    private static ByteBuffer deflate(Client client, ByteBuffer bb) {
+    	
+    	if(Compression.isBlock(bb)) {
+    		
+    		return bb;
+    	}
+    	
+    	int length		   = bb.remaining();
+    	ByteBuffer blocks  = client.compression.deflate(bb);
+    	
+    	if(blocks != null) {
+    		
+    		metrics.deflated_in.add(length);
+    		metrics.deflated_out.add(blocks.remaining());
+    	}
+    	
+    	return blocks;
+    }
+    
+    static private int slowConsumerPolicy(String name) {
+    	
+    	switch(name) {
+    	
+    		case "drop-oldest": return DROP_OLDEST;
+    		case "drop-new":	return DROP_NEW;
+    		case "disconnect":	return DISCONNECT;
+    		
+    		default:
+    			throw new IllegalArgumentException("unknown slow consumer policy " + name);
+    	}
+    }
+    
+    /**
+     * Writes a whole buffer to a ThreadEngine client, blocking until the socket took it. Can be
+     * called from any thread; writers to the same client take turns. While a file is being
+     * written to the client, the buffer is copied and sent after it, or waits for it to be
+     * done if max_queued bytes are waiting already.
+     * 
+     * @param client - the receiving client
+     * @param bb	 - the bytes to send
+     */
+    private static void writeBlocking(Client client, ByteBuffer bb) throws IOException {
+    	
+    	client.write_lock.lock();
+    	
+    	try {
+    		
+    		// Before compressing, so what's queued meanwhile isn't compressed first
+    		while(client.deferred != null && client.deferred_bytes + bb.remaining() > max_queued && client.deferred_bytes > 0) {
+    			
+    			client.file_done.awaitUninterruptibly();
+    		}
+    		
+    		// Under the lock, since the stream must follow the order of the writes
+    		if(client.compression != null && (bb = deflate(client, bb)) == null) {
+    			return;
+    		}
+    		
+    		if(client.deferred != null) {
+    			
+    			ByteBuffer copy = ByteBuffer.allocate(bb.remaining()).put(bb);
+    			
+    			copy.flip();
+    			client.deferred.add(copy);
+    			client.deferred_bytes += copy.remaining();
+    			return;
+    		}
+    		
+    		Tracing.Written traced = Tracing.beginWritten();
+    		long written		   = 0;
+    		
+    		while(bb.hasRemaining()) {
+    			
+    			written += client.channel.write(bb);
+    		}
+    		
+    		metrics.bytes_written.add(written);
+    		Tracing.commit(traced, client, written, 1, true);
+    		
+    	} finally {
+    		
+    		client.write_lock.unlock();
+    	}
+    }
+    
+    /**
+     * Writes what was kept for a ThreadEngine client while a file was being written to it, and
+     * lets the other writers go on. Called by the file's writer, holding the client's write lock.
+     * 
+     * @param client - the receiving client
+     */
+    static void fileDone(Client client) {
+    	
+    	ArrayDeque<ByteBuffer> deferred = client.deferred;
+    	
+    	client.deferred		  = null;
+    	client.deferred_bytes = 0;
+    	client.file_done.signalAll();
+    	
+    	if(deferred.isEmpty()) {
+    		return;
+    	}
+    	
+    	Tracing.Written traced = Tracing.beginWritten();
+    	long written		   = 0;
+    	
+    	try {
+    		
+    		for(ByteBuffer bb : deferred) {
+    			
+    			while(bb.hasRemaining()) {
+    				
+    				written += client.channel.write(bb);
+    			}
+    		}
+    		
+    	} catch(IOException ie) {
+    		
+    		// Left for the client's own thread to notice
+    	}
+    	
+    	metrics.bytes_written.add(written);
+    	Tracing.commit(traced, client, written, deferred.size(), true);
+    }
+    
+    /**
+     * Writes a buffer to a client owned by any event loop: directly if it's the calling loop,
+     * otherwise handed off to the owning loop. A failed write is left for the recipient's
+     * own loop to notice on its next read.
+     * 
+     * @param client - the receiving client
+     * @param bb	 - the bytes to send
+     */
+    static void sendTo(Client client, ByteBuffer bb) {
+    	
+    	if(client.loop == null || client.loop.inEventLoop()) {
+    		
+    		try {
+    			
+    			write(client, bb);
+    			
+    		} catch(IOException ie) { }
+    		
+    	} else {
+    		
+    		client.loop.execute(() -> sendTo(client, bb));
+    	}
+    }
+    
+    /**
+     * Writes as much of the client's queued output as the socket takes, up to EventLoop.GATHER
+     * buffers per write(ByteBuffer[]) call. Called by the event loop at the end of a pass for
+     * the clients written to, and when a channel becomes writable again.
+     * 
+     * @param client - the client to flush
+     */
+    static void flush(Client client) throws IOException {
+    	
+    	ArrayDeque<ByteBuffer> outbound = client.outbound;
+    	ByteBuffer[] gather				= client.loop.gather;
+    	
+    	while(!outbound.isEmpty() || client.files != null && client.files.sending != null) {
+    		
+    		// A file's content goes right after its header, a CHUNK per pass
+    		if(client.files != null && client.files.sending != null) {
+    			
+    			if(!FileTransfer.send(client)) {
+    				
+    				writeLater(client);
+    				return;
+    			}
+    			
+    			continue;
+    		}
+    		
+    		int n = 0;
+    		
+    		for(ByteBuffer bb : outbound) {
+    			
+    			gather[n++] = bb;
+    			
+    			if(n == gather.length || FileTransfer.isHeader(client, bb)) {
+    				break;
+    			}
+    		}
+    		
+    		Tracing.Written traced = Tracing.beginWritten();
+    		long written;
+    		
+    		try {
+    			
+    			written = client.channel.write(gather, 0, n);
+    			
+    			client.queued_bytes -= written;
+    			metrics.bytes_written.add(written);
+    			
+    		} finally {
+    			
+    			Arrays.fill(gather, 0, n, null);
+    		}
+    		
+    		int sent = 0;
+    		
+    		while(sent < n && !outbound.peek().hasRemaining()) {
+    			
+    			if(FileTransfer.isHeader(client, outbound.poll())) {
+    				
+    				FileTransfer.headerSent(client);
+    			}
+    			
+    			sent++;
+    		}
+    		
+    		metrics.queued_buffers.add(-sent);
+    		Tracing.commit(traced, client, written, n, outbound.isEmpty());
+    		
+    		// Socket buffer is full -- wait for OP_WRITE
+    		if(sent < n) {
+    			
+    			writeLater(client);
+    			return;
+    		}
+    	}
+    	
+    	if((client.key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+    		
+    		client.key.interestOps(client.key.interestOps() & ~SelectionKey.OP_WRITE);
+    	}
+    	
+    	// A client that said /bye is closed once its last bytes are out
+    	if(client.closing) {
+    		
+    		close(client, "Closing connection to");
+    	}
+    }
+	
+    // Has the loop flush the client again once its socket is writable
+    private static void writeLater(Client client) {
+    	
+    	if((client.key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+    		
+    		client.key.interestOps(client.key.interestOps() | SelectionKey.OP_WRITE);
+    	}
+    }
+    
+    /**
+     * Encodes a message once into a read-only direct buffer that many recipients can share.
+     * Each recipient writes from its own duplicate(), so only positions are per recipient,
+     * and being direct the bytes don't get copied again on every socket write.
+     * 
+     * @param message - the message to encode
+     */
+    static ByteBuffer encodeShared(String message) {
+    	
+    	return share(ByteBuffer.wrap(message.getBytes(charset)));
+    }
+    
+    /**
+     * Copies a frame into a read-only direct buffer, see encodeShared().
+     * 
+     * @param frame - the bytes to share, from position to limit
+     */
+    static ByteBuffer share(ByteBuffer frame) {
+    	
+    	ByteBuffer bb = ByteBuffer.allocateDirect(frame.remaining());
+    	
+    	bb.put(frame).flip();
+    	
+    	return bb.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Encodes a room event once per wire format in use in the room: as the given text line,
+     * and as a binary frame if the room has binary members.
      * 
-     * @param sc	  - the socket channel 
-     * @param message - the status message
+     * @param room	 - the room the event goes to
+     * @param text	 - the event as a text line
+     * @param opcode - the event's binary opcode
+     * @param fields - the event's binary fields
      */
-    static void sendStatusMessage(SocketChannel sc, String message) throws IOException {
+    static Outgoing event(Room room, String text, byte opcode, byte[]... fields) {
     	
-        ByteBuffer bb = ByteBuffer.wrap(message.getBytes());
-        sc.write(bb);
+    	ByteBuffer binary = null;
+    	
+    	if(room.binary_population.get() > 0) {
+    		
+    		binary = BinaryProtocol.encode(true, opcode, fields).asReadOnlyBuffer();
+    	}
+    	
+    	return new Outgoing(encodeShared(text), binary);
     }
-	
+    
     /**
-     * Sends a message to all socket_channels in an array, except sender.
+     * Sends a message to all members of a room, except sender. The message is encoded
+     * once for the whole room; members owned by other event loops are handed to their
+     * loop, which writes to them on its own thread.
      * 
-     * @param socket_channels - all socket channels
-     * @param message		  - the message to send
-     * @param sender		  - the client who sent the message
+     * @param room	 - the chat room
+     * @param shared - the message to send
+     * @param sender - the client who sent the message
      */
-    static void notifyOthers(ArrayList<SocketChannel> socket_channels, String message, SocketChannel sender) throws IOException {    	
+    static void notifyOthers(Room room, Outgoing shared, Client sender) {
     	
-        for(SocketChannel sc : socket_channels) {
-        	
-        	ByteBuffer bb = ByteBuffer.wrap(message.getBytes());
-        	
-            if(sc != sender) {
-                sc.write(bb);
-            }
-        }
+    	if(loops == null) {
+    		
+    		deliverLocked(room, room.members[0], shared, sender);
+    		return;
+    	}
+    	
+    	for(EventLoop loop : loops) {
+    		
+    		Members members = room.members[loop.id];
+    		
+    		if(loop.inEventLoop()) {
+    			
+    			deliver(room, members, shared, sender);
+    			
+    		} else {
+    			
+    			loop.execute(() -> deliver(room, members, shared, sender));
+    		}
+    	}
+    }
+    
+    /**
+     * Writes a shared message to the given members, all owned by the calling event loop.
+     * A failed write is left for the recipient's own loop to notice on its next read.
+     * 
+     * @param room	  - the chat room
+     * @param members - the receiving clients
+     * @param shared  - the encoded message, never modified
+     * @param sender  - the client who sent the message
+     */
+    private static void deliver(Room room, Members members, Outgoing shared, Client sender) {
+    	
+    	Tracing.FannedOut fanned_out = Tracing.beginFannedOut(shared);
+    	int delivered				 = 0;
+    	long bytes					 = 0;
+    	
+    	for(int i = 0; i < members.size; i++) {
+    		
+    		Client member = members.slots[i];
+    		
+    		ByteBuffer view = shared.viewFor(member);
+    		
+    		// A binary client that joined after the message was encoded
+    		if(member != sender && view != null) {
+    			
+    			bytes += view.remaining();
+    			
+    			try {
+    				
+    				write(member, view);
+    				delivered++;
+    				
+    			} catch(IOException ie) { }
+    		}
+    	}
+    	
+    	metrics.messages_fanned_out.add(delivered);
+    	Tracing.commit(fanned_out, room, delivered, bytes);
+    }
+    
+    /**
+     * Writes a shared message to ThreadEngine members, from the sender's thread. The members
+     * are copied under the lock, so joins and leaves don't wait for the writes.
+     * 
+     * @param room	  - the chat room
+     * @param members - the receiving clients
+     * @param shared  - the encoded message, never modified
+     * @param sender  - the client who sent the message
+     */
+    private static void deliverLocked(Room room, Members members, Outgoing shared, Client sender) {
+    	
+    	Tracing.FannedOut fanned_out = Tracing.beginFannedOut(shared);
+    	Client[] recipients;
+    	
+    	synchronized(members) {
+    		
+    		recipients = Arrays.copyOf(members.slots, members.size);
+    	}
+    	
+    	int delivered = 0;
+    	long bytes	  = 0;
+    	
+    	for(Client member : recipients) {
+    		
+    		ByteBuffer view = shared.viewFor(member);
+    		
+    		if(member != sender && view != null) {
+    			
+    			bytes += view.remaining();
+    			
+    			try {
+    				
+    				write(member, view);
+    				delivered++;
+    				
+    			} catch(IOException ie) { }
+    		}
+    	}
+    	
+    	metrics.messages_fanned_out.add(delivered);
+    	Tracing.commit(fanned_out, room, delivered, bytes);
+    }
+    
+    /**
+     * Lays out 'prefix nick body' followed by a line terminator into a new buffer, without
+     * decoding the body.
+     * 
+     * @param direct   - whether to allocate a direct buffer
+     * @param prefix   - the message type, e.g. MESSAGE_PREFIX
+     * @param nick	   - the sender's encoded nickname
+     * @param body	   - the buffer holding the message content
+     * @param offset   - where the content starts in 'body'
+     * @param length   - the content's length
+     * @param new_line - the line terminator
+     */
+    static ByteBuffer frame(boolean direct, byte[] prefix, byte[] nick, byte[] body, int offset, int length, byte[] new_line) {
+    	
+    	int size 	  = prefix.length + nick.length + 1 + length + new_line.length;
+    	ByteBuffer bb = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    	
+    	bb.put(prefix).put(nick).put((byte) ' ').put(body, offset, length).put(new_line).flip();
+    	
+    	return bb;
     }
     
     /**
@@ -379,21 +2247,139 @@ public class ChatServer implements Constants {
 	 * 
 	 * @param sc	  - the socket channel
 	 * @param client  - the user who sends the message
-	 * @param message - the message content
+	 * @param message - the buffer holding the message content
+	 * @param offset  - where the content starts in 'message'
+	 * @param length  - the content's length
 	 */
-	static void broadcastMessage(SocketChannel sc, Client client, String message) throws IOException {
+	static void broadcastMessage(SocketChannel sc, Client client, byte[] message, int offset, int length) throws IOException {
 		
         if(client.state != State.INSIDE) {
         	
-            sendStatusMessage(sc, ERROR);	// client.state must be INSIDE
+            sendStatusMessage(client, ERROR);	// client.state must be INSIDE
             
         } else {
-        	        
-        	// Note that "message" already contains a "\n", so there's no need to send NEW_LINE.
-        	notifyOthers(rooms.get(client.current_room), "MESSAGE " + client.nick + " " + message, null);
+        	
+        	if(length > MAX_MESSAGE_BYTES) {
+        		
+        		sendStatusMessage(client, ERROR);	// message too long
+        		return;
+        	}
+        	
+        	Room room = client.room;
+        	
+        	deliverMessage(room, client.nick_bytes, message, offset, length);
+        	
+        	if(federation != null) {
+        		
+        		federation.message(room.name, client.nick_bytes, message, offset, length);
+        	}
+        	
+        	// A room over its limit holds off whoever talks in it
+        	if(room.bucket != null) {
+        		
+        		long now = now(client);
+        		long wait;
+        		
+        		synchronized(room.bucket) {
+        			
+        			wait = room.bucket.take(now);
+        		}
+        		
+        		if(wait > 0) {
+        			
+        			client.throttled_until = Math.max(client.throttled_until, now + wait);
+        		}
+        	}
         }
     }
 	
+	/**
+	 * Sends a room message to the room's members on this node, and logs it.
+	 * 
+	 * @param room		- the chat room
+	 * @param nick		- the sender's encoded nickname
+	 * @param message	- the buffer holding the message content
+	 * @param offset	- where the content starts in 'message'
+	 * @param length	- the content's length
+	 */
+	private static void deliverMessage(Room room, byte[] nick, byte[] message, int offset, int length) {
+		
+		ByteBuffer binary = null;
+		
+		// Encoded straight into the shared buffers the whole room writes from
+		ByteBuffer text = frame(true, MESSAGE_PREFIX, nick, message, offset, length, LINE_FEED);
+		
+		if(room.binary_population.get() > 0) {
+			
+			binary = BinaryProtocol.encode(true, BinaryProtocol.MESSAGE, nick, message, offset, length).asReadOnlyBuffer();
+		}
+		
+		notifyOthers(room, new Outgoing(text.asReadOnlyBuffer(), binary, room.population.get() >= Compression.SHARED_MIN_POPULATION), null);
+		
+		// The log stores binary frames; reuse the room's if there is one
+		if(history != null) {
+			
+			history.append(room.name, binary != null ? binary : BinaryProtocol.encode(false, BinaryProtocol.MESSAGE, nick, message, offset, length));
+		}
+	}
+	
+	/**
+	 * Called by Federation for a room message sent on another node.
+	 * 
+	 * @param room_name - the room's name
+	 * @param nick		- the sender's encoded nickname
+	 * @param message	- the buffer holding the message content
+	 * @param offset	- where the content starts in 'message'
+	 * @param length	- the content's length
+	 */
+	static void remoteMessage(String room_name, byte[] nick, byte[] message, int offset, int length) {
+		
+		Room room = rooms.get(room_name);
+		
+		if(room != null && room.population.get() > 0 && length <= MAX_MESSAGE_BYTES && nick.length <= MAX_NICK_BYTES) {
+			
+			deliverMessage(room, nick, message, offset, length);
+		}
+	}
+	
+	/**
+	 * Called by Federation for a JOINED, LEFT or NEWNICK event on another node.
+	 * 
+	 * @param kind		- BinaryProtocol.JOINED, LEFT or NEWNICK
+	 * @param room_name - the room's name
+	 * @param nick		- the nickname the event is about
+	 * @param new_nick	- the new nickname for NEWNICK, else null
+	 */
+	static void remoteEvent(byte kind, String room_name, String nick, String new_nick) {
+		
+		Room room = rooms.get(room_name);
+		
+		if(room == null || room.population.get() == 0) {
+			return;
+		}
+		
+		byte[] nick_bytes = nick.getBytes(charset);
+		
+		switch(kind) {
+		
+			case BinaryProtocol.JOINED:
+				notifyOthers(room, event(room, "JOINED " + nick + NEW_LINE, kind, nick_bytes), null);
+				break;
+				
+			case BinaryProtocol.LEFT:
+				notifyOthers(room, event(room, "LEFT " + nick + NEW_LINE, kind, nick_bytes), null);
+				break;
+				
+			case BinaryProtocol.NEWNICK:
+				
+				if(new_nick != null) {
+					
+					notifyOthers(room, event(room, "NEWNICK " + nick + " " + new_nick + NEW_LINE, kind, nick_bytes, new_nick.getBytes(charset)), null);
+				}
+				break;
+		}
+	}
+	
 	
 	/*****************************************************
 	 * PROTOCOL COMMANDS
@@ -421,40 +2407,215 @@ public class ChatServer implements Constants {
      */
 	static void nick(SocketChannel sc, Client client, String new_nickname) throws IOException {
 		
-		// check if nickname is already in use
-		for(Map.Entry<SocketChannel, Client> entry : clients.entrySet()) {
+		byte[] new_nickname_bytes = new_nickname.getBytes(charset);
+		
+		if(new_nickname_bytes.length > MAX_NICK_BYTES) {
+			
+			sendStatusMessage(client, ERROR);	// nickname too long
+			return;
+		}
+		
+		// claim the nickname, unless it's already in use
+		if(nicknames.putIfAbsent(new_nickname, client) != null) {
+			
+			sendStatusMessage(client, ERROR);	// nickname already in use
+			return;
+		}
+		
+		if(federation == null) {
+			
+			rename(client, new_nickname, new_nickname_bytes);
+			return;
+		}
+		
+		// Held here meanwhile, so the other nodes' claims of it are denied
+		if(federation.isRemote(new_nickname)) {
 			
-			if(new_nickname.equals(entry.getValue().nick)) {
+			nicknames.remove(new_nickname, client);
+			sendStatusMessage(client, ERROR);	// nickname in use on another node
+			return;
+		}
+		
+		if(client.loop == null) {
+			
+			CompletableFuture<Boolean> granted = new CompletableFuture<>();
+			
+			federation.claim(new_nickname, granted::complete);
+			
+			try {
 				
-				sendStatusMessage(sc, ERROR);	// nickname already in use
-				return;
+				claimed(client, new_nickname, new_nickname_bytes, granted.get());
+				
+			} catch(InterruptedException | ExecutionException e) {
+				
+				throw new IOException(e);
+			}
+			
+			return;
+		}
+		
+		// Nothing else the client sent runs until the other nodes answered
+		client.throttled_until = SUSPENDED;
+		
+		federation.claim(new_nickname, granted -> client.loop.execute(() -> {
+			
+			try {
+				
+				claimed(client, new_nickname, new_nickname_bytes, granted);
+				resume(client);
+				
+			} catch(IOException ie) {
+				
+				close(client, "Closed");
 			}
+		}));
+	}
+	
+	/**
+	 * Finishes a /nick once the other nodes answered the claim of the new nickname, which the
+	 * client holds here meanwhile.
+	 * 
+	 * @param client			 - the user who wants to set his/her nickname
+	 * @param new_nickname		 - the claimed nickname
+	 * @param new_nickname_bytes - the claimed nickname, encoded
+	 * @param granted			 - whether every node let it go
+	 */
+	private static void claimed(Client client, String new_nickname, byte[] new_nickname_bytes, boolean granted) throws IOException {
+		
+		if(!granted || !client.channel.isOpen()) {
+			
+			nicknames.remove(new_nickname, client);
+			federation.nickChanged(new_nickname);
+			sendStatusMessage(client, ERROR);	// nickname in use on another node
+			return;
+		}
+		
+		rename(client, new_nickname, new_nickname_bytes);
+	}
+	
+	/**
+	 * Gives a client the nickname it now holds, releases its old one, and tells its room.
+	 * 
+	 * @param client			 - the user who set his/her nickname
+	 * @param new_nickname		 - the new nickname
+	 * @param new_nickname_bytes - the new nickname, encoded
+	 */
+	private static void rename(Client client, String new_nickname, byte[] new_nickname_bytes) throws IOException {
+		
+		String old_nickname		  = client.nick;
+		byte[] old_nickname_bytes = client.nick_bytes;
+		
+		if(old_nickname != null) {
+			
+			nicknames.remove(old_nickname, client);
 		}
 		
+		client.nick 	  = new_nickname;
+		client.nick_bytes = new_nickname_bytes;
+		
 		if(client.state == State.INIT) {
 			
             client.state = State.OUTSIDE;
             
         } else if(client.state == State.INSIDE) {
         	
-        	notifyOthers(rooms.get(client.current_room), "NEWNICK " + client.nick +
-        				 " " + new_nickname + NEW_LINE, sc);
+        	Room room = client.room;
+        	
+        	notifyOthers(room, event(room, "NEWNICK " + old_nickname + " " + new_nickname + NEW_LINE,
+        							 BinaryProtocol.NEWNICK, old_nickname_bytes, client.nick_bytes), client);
+        	
+        	if(federation != null) {
+        		
+        		federation.event(BinaryProtocol.NEWNICK, room.name, old_nickname_bytes, client.nick_bytes);
+        	}
+        }
+        
+        if(federation != null) {
+        	
+        	if(old_nickname != null) {
+        		
+        		federation.nickChanged(old_nickname);
+        	}
+        	
+        	federation.nickChanged(new_nickname);
         }
         
-        client.nick = new_nickname;
-        sendStatusMessage(sc, OK);
+        sendStatusMessage(client, OK);
     }
 	
+	/**
+	 * Adds a client to its event loop's slice of a room's members, or to the shared one with
+	 * ThreadEngine.
+	 * 
+	 * @param room	 - the room
+	 * @param client - the new member
+	 */
+	private static void addMember(Room room, Client client) {
+		
+		if(client.loop != null) {
+			
+			room.members[client.loop.id].add(client);
+			return;
+		}
+		
+		synchronized(room.members[0]) {
+			
+			room.members[0].add(client);
+		}
+	}
+	
+	/**
+	 * Removes a client from its slice of a room's members, see addMember().
+	 * 
+	 * @param room	 - the room
+	 * @param client - the leaving member
+	 */
+	private static void removeMember(Room room, Client client) {
+		
+		if(client.loop != null) {
+			
+			room.members[client.loop.id].remove(client);
+			return;
+		}
+		
+		synchronized(room.members[0]) {
+			
+			room.members[0].remove(client);
+		}
+	}
+	
 	/**
 	 * Removes the specified client from his/her current chat room (does not set user' state to OUTSIDE.
 	 * 
 	 * @param sc	 - the socket channel
 	 * @param client - the user who wants to leave his/her current room
 	 */
-	private static void _leaveRoom(SocketChannel sc, Client client) throws IOException {
+	private static void _leaveRoom(SocketChannel sc, Client client) {
+		
+		Room room = client.room;
 		
-		rooms.get(client.current_room).remove(sc);
-        notifyOthers(rooms.get(client.current_room), "LEFT " + client.nick + NEW_LINE, null);
+		removeMember(room, client);
+		int population = room.population.decrementAndGet();
+		
+		if(client.binary) {
+			
+			room.binary_population.decrementAndGet();
+		}
+		
+        notifyOthers(room, event(room, "LEFT " + client.nick + NEW_LINE, BinaryProtocol.LEFT, client.nick_bytes), null);
+        
+        if(federation != null) {
+        	
+        	federation.event(BinaryProtocol.LEFT, room.name, client.nick_bytes);
+        	
+        	// The last one here: the other nodes may stop sending the room's messages
+        	if(population == 0) {
+        		
+        		federation.roomChanged(room.name);
+        	}
+        }
+        
+        client.room = null;
 	}
 	
 	/**
@@ -477,7 +2638,7 @@ public class ChatServer implements Constants {
 		
 		if(client.state == State.INIT) {
         	
-        	sendStatusMessage(sc, ERROR);	// nickname is not defined yet
+        	sendStatusMessage(client, ERROR);	// nickname is not defined yet
             return;
         }
         
@@ -488,25 +2649,41 @@ public class ChatServer implements Constants {
         }
 
         // Join the new room
-        ArrayList<SocketChannel> room_users = rooms.get(room_name);
-
         // If room doesn't exist, create it
-        if(room_users == null) {
+        Room room = rooms.computeIfAbsent(room_name, name -> new Room(name, loops == null ? 1 : loops.length));
+
+        notifyOthers(room, event(room, "JOINED " + client.nick + NEW_LINE, BinaryProtocol.JOINED, client.nick_bytes), null);
+
+        addMember(room, client);
+        int population = room.population.incrementAndGet();
+        metrics.largest_room.accumulate(population);
+        
+        if(client.binary) {
         	
-            room_users = new ArrayList<>();
-            rooms.put(room_name, room_users);
-            
-        } else {
+        	room.binary_population.incrementAndGet();
+        }
+        
+        if(federation != null) {
+        	
+        	federation.event(BinaryProtocol.JOINED, room_name, client.nick_bytes);
         	
-        	notifyOthers(room_users, "JOINED " + client.nick + NEW_LINE, null);
+        	// The first one here: the other nodes must start sending the room's messages
+        	if(population == 1) {
+        		
+        		federation.roomChanged(room_name);
+        	}
         }
-
-        room_users.add(sc);
         
-        client.current_room = room_name;
+        client.room         = room;
         client.state        = State.INSIDE;
 
-        sendStatusMessage(sc, OK);
+        sendStatusMessage(client, OK);
+        
+        // Catch the newcomer up with what was said before
+        if(history != null && replay > 0) {
+        	
+        	sendHistory(client, replay);
+        }
     }
 
 	/**
@@ -520,7 +2697,7 @@ public class ChatServer implements Constants {
 		
         if(client.state == State.INIT) {
         	
-            sendStatusMessage(sc, ERROR);	// nickname is not defined yet
+            sendStatusMessage(client, ERROR);	// nickname is not defined yet
             return;
         }
         
@@ -528,14 +2705,79 @@ public class ChatServer implements Constants {
         	
         	_leaveRoom(sc, client);
         	client.state = State.OUTSIDE;
-            sendStatusMessage(sc, OK);
+            sendStatusMessage(client, OK);
             
         } else {
         	
-            sendStatusMessage(sc, ERROR); // client.state must be INSIDE
+            sendStatusMessage(client, ERROR); // client.state must be INSIDE
         }
     }
 	
+	/**
+	 * Sends the most recent messages of the client's current room, then OK.
+	 * 
+	 * INSIDE and /history n -> MESSAGE lines, oldest first, then 'OK' to user
+	 * 
+	 * @param sc	 - the socket channel
+	 * @param client - the user who asked for the history
+	 * @param n		 - how many messages, at most
+	 */
+	static void history(SocketChannel sc, Client client, int n) throws IOException {
+		
+		if(client.state != State.INSIDE || history == null) {
+			
+			sendStatusMessage(client, ERROR);	// client.state must be INSIDE, with history on
+			return;
+		}
+		
+		sendHistory(client, n);
+		sendStatusMessage(client, OK);
+	}
+	
+	/**
+	 * Compresses everything sent to the client from now on, see Compression.
+	 * 
+	 * any state and /compress -> 'COMPRESS' to user, then compressed blocks only
+	 * 
+	 * @param client - the user who asked for compression
+	 */
+	static void compress(Client client) throws IOException {
+		
+		if(client.compression != null) {
+			
+			sendStatusMessage(client, ERROR);	// already compressed
+			return;
+		}
+		
+		// With ThreadEngine, other threads' messages must come either before the reply, or
+		// compressed after it
+		if(client.loop == null) {
+			
+			client.write_lock.lock();
+		}
+		
+		try {
+			
+			sendStatusMessage(client, COMPRESSED);
+			client.compression = new Compression();
+			
+		} finally {
+			
+			if(client.loop == null) {
+				
+				client.write_lock.unlock();
+			}
+		}
+	}
+	
+	private static void sendHistory(Client client, int n) throws IOException {
+		
+		for(ByteBuffer bb : history.recent(client.room.name, n, client.binary)) {
+			
+			write(client, bb);
+		}
+	}
+	
 	/**
 	 * Closes the server connection with the specified client.
 	 * 
@@ -544,19 +2786,25 @@ public class ChatServer implements Constants {
 	 */
 	static void bye(SocketChannel sc, Client client) throws IOException {
 		
-		Socket s = sc.socket();
-		
         if(client.state == State.INSIDE) {
         	
         	_leaveRoom(sc, client);
         	client.state = State.OUTSIDE;
         }
-                   
-        System.out.println("Closing connection to " + s);
         
-        sendStatusMessage(sc, "BYE\n");
-        clients.remove(sc);
-        s.close();
+        sendStatusMessage(client, GOODBYE);
+        
+        if(client.outbound.isEmpty()) {
+        	
+        	close(client, "Closing connection to");
+        	
+        } else {
+        	
+        	// Free the nickname now; stop reading, and close once the queued output is flushed
+        	forget(client);
+        	client.closing = true;
+        	client.key.interestOps(SelectionKey.OP_WRITE);
+        }
     }
 	
 	/**
@@ -567,39 +2815,91 @@ public class ChatServer implements Constants {
 	 * @param sc		- the socket channel
 	 * @param client	- the user who sends the private message
 	 * @param recipient	- the target user
-	 * @param message	- the private message to be sent
+	 * @param message	- the buffer holding the private message to be sent
+	 * @param offset	- where the message starts in 'message'
+	 * @param length	- the message's length
 	 */
-	static void sendPrivateMessage(SocketChannel sc, Client client, String recipient, String message) throws IOException {
+	static void sendPrivateMessage(SocketChannel sc, Client client, String recipient, byte[] message, int offset, int length) throws IOException {
 		
         if(client.state == State.INIT) {
         	
-            sendStatusMessage(sc, ERROR);	// nickname is not defined yet
+            sendStatusMessage(client, ERROR);	// nickname is not defined yet
             return;
         }
         
-        SocketChannel recipient_sc = null;
-        
-        //Find target user socket channel
-        for(Map.Entry<SocketChannel, Client> entry : clients.entrySet()) {
+        if(length > MAX_MESSAGE_BYTES) {
         	
-            if(recipient.equals(entry.getValue().nick)) {
-            	
-            	recipient_sc = entry.getKey();
-                break;
-            }
+        	sendStatusMessage(client, ERROR);	// message too long
+        	return;
         }
         
-        if(recipient_sc == null) {
-        	
-        	sendStatusMessage(sc, ERROR);	// recipient nickname does not exist
+        //Find target user, here or on another node
+        Client recipient_client = holder(recipient);
+        
+        if(recipient_client != null) {
         	
-        } else {
+        	deliverPrivate(recipient_client, client.nick_bytes, message, offset, length);
         	
-        	// send the private message to it's recipient
-        	sendStatusMessage(recipient_sc, "PRIVATE " + client.nick + " " + message + NEW_LINE);
+        } else if(federation == null || !federation.privateMessage(recipient, client.nick_bytes, message, offset, length)) {
         	
-        	// notify sender
-            sendStatusMessage(sc, OK);
+        	sendStatusMessage(client, ERROR);	// recipient nickname does not exist
+        	return;
         }
+        
+        // notify sender
+        sendStatusMessage(client, OK);
     }
+	
+	/**
+	 * Finds who holds a nickname; not a client that's still claiming it from the other nodes.
+	 * 
+	 * @param nick - the nickname
+	 */
+	static Client holder(String nick) {
+		
+		Client client = nicknames.get(nick);
+		
+		return client != null && nick.equals(client.nick) ? client : null;
+	}
+	
+	/**
+	 * Sends a private message to its recipient, on the loop that owns it.
+	 * 
+	 * @param recipient - the target user
+	 * @param sender	- the sender's encoded nickname
+	 * @param message	- the buffer holding the private message
+	 * @param offset	- where the message starts in 'message'
+	 * @param length	- the message's length
+	 */
+	private static void deliverPrivate(Client recipient, byte[] sender, byte[] message, int offset, int length) {
+		
+		if(recipient.binary) {
+			
+			sendTo(recipient, BinaryProtocol.encode(false, BinaryProtocol.PRIVATE, sender, message, offset, length));
+			
+		} else {
+			
+			sendTo(recipient, frame(false, PRIVATE_PREFIX, sender, message, offset, length, NEW_LINE_BYTES));
+		}
+	}
+	
+	/**
+	 * Called by Federation for a private message sent on another node. Dropped if the recipient
+	 * left meanwhile.
+	 * 
+	 * @param recipient - the target user's nickname
+	 * @param sender	- the sender's encoded nickname
+	 * @param message	- the buffer holding the private message
+	 * @param offset	- where the message starts in 'message'
+	 * @param length	- the message's length
+	 */
+	static void remotePrivate(String recipient, byte[] sender, byte[] message, int offset, int length) {
+		
+		Client recipient_client = holder(recipient);
+		
+		if(recipient_client != null && length <= MAX_MESSAGE_BYTES && sender.length <= MAX_NICK_BYTES) {
+			
+			deliverPrivate(recipient_client, sender, message, offset, length);
+		}
+	}
 }
@@ -0,0 +1,771 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * One connection to a ChatServer, speaking the text protocol, served by a ClientLoop. What the
+ * server sends is parsed on the loop's thread and handed to the session's Listener; PING is
+ * answered without bothering it.
+ *
+ * The CharSequences passed to the listener are views on the loop's decode buffer: they're only
+ * valid during the call, and should be copied (e.g. with toString()) to be kept. This is what
+ * lets a loop receive messages for thousands of sessions without allocating.
+ *
+ * Commands can be sent from any thread. They're encoded into the session's output buffer and
+ * written right away if the socket takes them; what it doesn't take is written by the loop.
+ *
+ * A file sent by another user comes as a call to file(), then its content in chunks, each one
+ * only valid during its call to fileData(), see FileTransfer.
+ */
+class ChatSession {
+
+	/*
+	 * Called on the session's loop thread. Everything does nothing unless overridden.
+	 */
+	interface Listener {
+
+		default void connected(ChatSession session) { }
+
+		default void ok(ChatSession session) { }
+
+		default void error(ChatSession session) { }
+
+		default void newNick(ChatSession session, CharSequence old_nick, CharSequence new_nick) { }
+
+		default void joined(ChatSession session, CharSequence nick) { }
+
+		default void left(ChatSession session, CharSequence nick) { }
+
+		default void bye(ChatSession session) { }
+
+		default void message(ChatSession session, CharSequence nick, CharSequence message) { }
+
+		default void privateMessage(ChatSession session, CharSequence nick, CharSequence message) { }
+
+		default void file(ChatSession session, CharSequence nick, CharSequence name, long size) { }
+
+		// The next part of the file; last is true for the last one, empty if the file is empty
+		default void fileData(ChatSession session, ByteBuffer chunk, boolean last) { }
+
+		// Any other line, e.g. the reply to /stats
+		default void other(ChatSession session, CharSequence line) { }
+
+		// The connection is gone; cause is null when it was closed normally
+		default void closed(ChatSession session, IOException cause) { }
+	}
+
+	/*
+	 * What the server sends.
+	 */
+	static private final byte[] OK		= bytes("OK");
+	static private final byte[] ERROR	= bytes("ERROR");
+	static private final byte[] NEWNICK = bytes("NEWNICK");
+	static private final byte[] JOINED	= bytes("JOINED");
+	static private final byte[] LEFT	= bytes("LEFT");
+	static private final byte[] BYE		= bytes("BYE");
+	static private final byte[] MESSAGE = bytes("MESSAGE");
+	static private final byte[] PRIVATE = bytes("PRIVATE");
+	static private final byte[] PING	= bytes("PING");
+	static private final byte[] COMPRESS = bytes("COMPRESS");
+	static private final byte[] FILE	= bytes("FILE");
+
+	/*
+	 * What we send.
+	 */
+	static private final byte[] NICK_COMMAND	= bytes("/nick ");
+	static private final byte[] JOIN_COMMAND	= bytes("/join ");
+	static private final byte[] LEAVE_COMMAND	= bytes("/leave");
+	static private final byte[] BYE_COMMAND		= bytes("/bye");
+	static private final byte[] PRIVATE_COMMAND = bytes("/priv ");
+	static private final byte[] HISTORY_COMMAND = bytes("/history ");
+	static private final byte[] PONG_COMMAND	= bytes("/pong");
+	static private final byte[] COMPRESS_COMMAND = bytes("/compress");
+	static private final byte[] SEND_COMMAND	= bytes("/send ");
+	static private final byte[] ESCAPE			= bytes("/");
+
+	// Longest line accepted from the server
+	static private final int MAX_LINE = 1 << 20;
+
+	// Most bytes a compressed read may inflate to, complete lines included
+	static private final int MAX_INFLATED = 16 * MAX_LINE;
+
+	final ClientLoop loop;
+	final SocketChannel channel;
+	final Listener listener;
+
+	SelectionKey key;				// set by the loop once registered
+
+	private Object attachment;
+
+	// Received bytes not handled yet, from 0 to position; and a view for decoding lines from it
+	private ByteBuffer input = ByteBuffer.allocate(4096);
+	private ByteBuffer line	 = input.duplicate();
+
+	// Inflates what the server sends once it answered /compress, else null; and the compressed
+	// blocks not inflated yet, from 0 to position
+	private Compression.Reader reader;
+	private ByteBuffer blocks;
+
+	// What's left of a file being received
+	private long file_remaining;
+
+	// The file being sent, null if none; guarded by this session. It goes out once the first
+	// upload_at bytes of the output have, from upload_position to upload_size.
+	private FileChannel upload;
+	private int upload_at;
+	private long upload_position, upload_size;
+
+	private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+																 .onMalformedInput(CodingErrorAction.REPLACE)
+																 .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	// Encoded commands the socket didn't take yet, from 0 to position; guarded by this session
+	private ByteBuffer output = ByteBuffer.allocate(1024);
+	private boolean writable;		// connected, and not waiting for OP_WRITE
+	private boolean closed;
+
+	// Asks the loop for OP_WRITE; allocated once since it's needed whenever the socket is full
+	private final Runnable want_write = () -> {
+
+		if(key != null && key.isValid()) {
+
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	};
+
+	ChatSession(ClientLoop loop, SocketChannel channel, Listener listener) {
+
+		this.loop	  = loop;
+		this.channel  = channel;
+		this.listener = listener;
+	}
+
+	/**
+	 * Attaches an object of the caller's to this session, e.g. the bot it belongs to.
+	 */
+	void attach(Object attachment) {
+
+		this.attachment = attachment;
+	}
+
+	Object attachment() {
+
+		return attachment;
+	}
+
+	/*
+	 * Commands. They never block, and a failure to send closes the session.
+	 */
+
+	void nick(CharSequence nick) {
+
+		send(NICK_COMMAND, nick, null);
+	}
+
+	void join(CharSequence room) {
+
+		send(JOIN_COMMAND, room, null);
+	}
+
+	void leave() {
+
+		send(LEAVE_COMMAND, null, null);
+	}
+
+	void bye() {
+
+		send(BYE_COMMAND, null, null);
+	}
+
+	void privateMessage(CharSequence nick, CharSequence message) {
+
+		send(PRIVATE_COMMAND, nick, message);
+	}
+
+	void history(int n) {
+
+		send(HISTORY_COMMAND, Integer.toString(n), null);
+	}
+
+	/**
+	 * Asks the server to compress what it sends from now on. Inflating is taken care of here;
+	 * the listener sees the same lines.
+	 */
+	void compress() {
+
+		send(COMPRESS_COMMAND, null, null);
+	}
+
+	/**
+	 * Sends a file to a user, or to the room if it's the one the session is in. The server
+	 * answers OK once it has the whole file, or ERROR. The file is streamed from disk with
+	 * FileChannel.transferTo() as the socket takes it; commands sent meanwhile follow it.
+	 *
+	 * @param target - the recipient's nickname, or the room
+	 * @param name	 - the file's name, without blanks
+	 * @param path	 - the file to send, left open until it's sent
+	 * @return the file's size
+	 */
+	synchronized long sendFile(CharSequence target, CharSequence name, Path path) throws IOException {
+
+		if(closed) {
+
+			throw new IOException("Not connected");
+		}
+
+		if(upload != null) {
+
+			throw new IOException("A file is being sent already");
+		}
+
+		FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+		long size		 = file.size();
+
+		send(SEND_COMMAND, target, name + " " + size);
+
+		// What's left of the output goes first, then the file
+		upload			= file;
+		upload_at		= output.position();
+		upload_position = 0;
+		upload_size		= size;
+
+		writeIfWritable();
+
+		return size;
+	}
+
+	/**
+	 * Sends a message to the room. A leading '/' is escaped, so it's never taken for a command.
+	 *
+	 * @param message - the message, on one line
+	 */
+	void message(CharSequence message) {
+
+		boolean escape = message.length() > 0 && message.charAt(0) == '/';
+
+		send(escape ? ESCAPE : null, message, null);
+	}
+
+	/**
+	 * Sends a line as typed by a user: a command if it starts with a single '/', a message
+	 * otherwise.
+	 *
+	 * @param line - the line, without its line feed
+	 */
+	void send(CharSequence line) {
+
+		send(null, line, null);
+	}
+
+	/**
+	 * Closes the session. The listener's closed() is called on the loop.
+	 */
+	void close() {
+
+		loop.execute(() -> close(null));
+	}
+
+	// Queues 'prefix first second\n', the parts that aren't null, and writes what the socket takes
+	private synchronized void send(byte[] prefix, CharSequence first, CharSequence second) {
+
+		if(closed) {
+			return;
+		}
+
+		int length = (prefix == null ? 0 : prefix.length) + 2;
+		length += first == null ? 0 : first.length() * 3;
+		length += second == null ? 0 : second.length() * 3;
+
+		ensureOutput(length);
+
+		if(prefix != null) {
+
+			output.put(prefix);
+		}
+
+		if(first != null) {
+
+			encode(first, output);
+		}
+
+		if(second != null) {
+
+			output.put((byte) ' ');
+			encode(second, output);
+		}
+
+		output.put((byte) '\n');
+
+		writeIfWritable();
+	}
+
+	// Writes what the socket takes unless waiting for OP_WRITE; a failure closes the session
+	private void writeIfWritable() {
+
+		if(writable) {
+
+			try {
+
+				write();
+
+			} catch(IOException ie) {
+
+				loop.execute(() -> close(ie));
+			}
+		}
+	}
+
+	// Loop thread: the connection is established
+	void connected() throws IOException {
+
+		key.interestOps(SelectionKey.OP_READ);
+
+		synchronized(this) {
+
+			writable = true;
+			write();
+		}
+
+		listener.connected(this);
+	}
+
+	// Loop thread: the socket takes more data
+	synchronized void flush() throws IOException {
+
+		key.interestOps(SelectionKey.OP_READ);
+		writable = true;
+
+		write();
+	}
+
+	// Writes what the socket takes, and asks for OP_WRITE if it doesn't take everything
+	private void write() throws IOException {
+
+		if(upload != null && !writeUpload()) {
+
+			wantWrite();
+			return;
+		}
+
+		if(output.position() == 0) {
+			return;
+		}
+
+		output.flip();
+		channel.write(output);
+		output.compact();
+
+		if(output.position() > 0) {
+
+			wantWrite();
+		}
+	}
+
+	// Writes the output queued before the file being sent, then the file; true once both are out
+	private boolean writeUpload() throws IOException {
+
+		if(upload_at > 0) {
+
+			output.flip();
+
+			int limit = output.limit();
+			output.limit(upload_at);
+			upload_at -= channel.write(output);
+			output.limit(limit);
+
+			output.compact();
+
+			if(upload_at > 0) {
+				return false;
+			}
+		}
+
+		long n = upload.transferTo(upload_position, upload_size - upload_position, channel);
+
+		upload_position += n;
+
+		if(upload_position < upload_size) {
+
+			// The server expects the size announced
+			if(n == 0 && upload.size() <= upload_position) {
+
+				throw new IOException("File truncated while being sent");
+			}
+
+			return false;
+		}
+
+		upload.close();
+		upload = null;
+
+		return true;
+	}
+
+	private void wantWrite() {
+
+		writable = false;
+
+		if(loop.inEventLoop()) {
+
+			want_write.run();
+
+		} else {
+
+			loop.execute(want_write);
+		}
+	}
+
+	// Loop thread: reads what's available and handles every complete line
+	void read() throws IOException {
+
+		if(reader != null) {
+
+			if(!blocks.hasRemaining()) {
+
+				// Only ever holds one incomplete block
+				blocks.flip();
+				blocks = ByteBuffer.allocate(blocks.capacity() * 2).put(blocks);
+			}
+
+			if(channel.read(blocks) < 0) {
+
+				close(null);
+				return;
+			}
+
+			inflate();
+			handleLines();
+			return;
+		}
+
+		if(!input.hasRemaining()) {
+
+			if(input.capacity() >= MAX_LINE) {
+
+				throw new IOException("Line too long");
+			}
+
+			input.flip();
+			input = ByteBuffer.allocate(input.capacity() * 2).put(input);
+			line  = input.duplicate();
+		}
+
+		if(channel.read(input) < 0) {
+
+			close(null);
+			return;
+		}
+
+		handleLines();
+	}
+
+	// Inflates the complete blocks received at the end of the input
+	private void inflate() throws IOException {
+
+		blocks.flip();
+		input = reader.inflate(blocks, input, MAX_INFLATED);
+		line  = input.duplicate();
+		blocks.compact();
+	}
+
+	// Handles every complete line of the input, and keeps the incomplete one
+	private void handleLines() throws IOException {
+
+		byte[] data = input.array();
+		int limit	= input.position();
+		int start	= fileData(data, 0, limit);
+
+		for(int i = start; i < limit && !closed; i++) {
+
+			if(data[i] == '\n') {
+
+				int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+
+				handle(data, start, end);
+				start = fileData(data, i + 1, limit);
+				i	  = start - 1;
+
+				// The server compresses what follows its COMPRESS, which may be in this read
+				if(reader != null && blocks == null) {
+
+					blocks = ByteBuffer.allocate(Math.max(8192, limit - start)).put(data, start, limit - start);
+					input.clear();
+
+					inflate();
+					handleLines();
+					return;
+				}
+			}
+		}
+
+		if(closed) {
+			return;
+		}
+
+		// Keep the incomplete line at the front
+		System.arraycopy(data, start, data, 0, limit - start);
+		input.position(limit - start);
+	}
+
+	// Hands what's in data[start, limit) of a file being received to the listener; returns
+	// where the rest starts
+	private int fileData(byte[] data, int start, int limit) {
+
+		if(file_remaining == 0 || closed) {
+			return start;
+		}
+
+		int n = (int) Math.min(file_remaining, limit - start);
+
+		file_remaining -= n;
+		listener.fileData(this, ByteBuffer.wrap(data, start, n), file_remaining == 0);
+
+		return start + n;
+	}
+
+	// Loop thread: closes the channel, once, and tells the listener
+	void close(IOException cause) {
+
+		if(closed) {
+			return;
+		}
+
+		synchronized(this) {
+
+			closed	 = true;
+			writable = false;
+
+			if(upload != null) {
+
+				try {
+					upload.close();
+				} catch(IOException ie) { }
+
+				upload = null;
+			}
+		}
+
+		if(key != null) {
+
+			key.cancel();
+		}
+
+		try {
+			channel.close();
+		} catch(IOException ie) { }
+
+		if(reader != null) {
+
+			reader.end();
+		}
+
+		listener.closed(this, cause);
+	}
+
+	private void handle(byte[] data, int start, int end) throws IOException {
+
+		// The type, then the first field, up to the next space
+		int type_end  = indexOf(data, start, end, (byte) ' ');
+		int first	  = Math.min(type_end + 1, end);
+		int first_end = indexOf(data, first, end, (byte) ' ');
+
+		if(matches(data, start, type_end, MESSAGE) && first_end < end) {
+
+			decode(data, first, first_end, end);
+			listener.message(this, loop.first, loop.second);
+
+		} else if(matches(data, start, type_end, PRIVATE) && first_end < end) {
+
+			decode(data, first, first_end, end);
+			listener.privateMessage(this, loop.first, loop.second);
+
+		} else if(matches(data, start, type_end, PING)) {
+
+			send(PONG_COMMAND, null, null);
+
+		} else if(matches(data, start, type_end, OK)) {
+
+			listener.ok(this);
+
+		} else if(matches(data, start, type_end, ERROR)) {
+
+			listener.error(this);
+
+		} else if(matches(data, start, type_end, JOINED)) {
+
+			decode(data, first, end, end);
+			listener.joined(this, loop.first);
+
+		} else if(matches(data, start, type_end, LEFT)) {
+
+			decode(data, first, end, end);
+			listener.left(this, loop.first);
+
+		} else if(matches(data, start, type_end, NEWNICK) && first_end < end) {
+
+			decode(data, first, first_end, indexOf(data, first_end + 1, end, (byte) ' '));
+			listener.newNick(this, loop.first, loop.second);
+
+		} else if(matches(data, start, type_end, BYE)) {
+
+			listener.bye(this);
+
+		} else if(matches(data, start, type_end, FILE) && first_end < end) {
+
+			// The nickname and name, then the size
+			int name_end = indexOf(data, first_end + 1, end, (byte) ' ');
+			long size	 = FileTransfer.parseSize(data, Math.min(name_end + 1, end), end);
+
+			if(size < 0) {
+
+				throw new IOException("Bad file size");
+			}
+
+			decode(data, first, first_end, name_end);
+			listener.file(this, loop.first, loop.second, size);
+
+			if(size == 0) {
+
+				listener.fileData(this, ByteBuffer.allocate(0), true);
+			}
+
+			file_remaining = size;
+
+		} else if(matches(data, start, type_end, COMPRESS) && reader == null) {
+
+			reader = new Compression.Reader();
+
+		} else {
+
+			decode(data, start, end, end);
+			listener.other(this, loop.first);
+		}
+	}
+
+	/*
+	 * Decodes two fields, from..middle and middle + 1..end, into the loop's chars, and points
+	 * the loop's first and second views at them. The second is empty when middle is end.
+	 */
+	private void decode(byte[] data, int from, int middle, int end) {
+
+		loop.ensureChars(end - from);
+
+		CharBuffer chars = loop.chars;
+		chars.clear();
+
+		decodeField(data, from, middle, chars);
+		int first_end = chars.position();
+
+		decodeField(data, Math.min(middle + 1, end), end, chars);
+
+		loop.first.clear();
+		loop.first.limit(first_end);
+
+		loop.second.clear();
+		loop.second.limit(chars.position()).position(first_end);
+	}
+
+	private void decodeField(byte[] data, int from, int to, CharBuffer chars) {
+
+		line.clear();
+		line.position(from).limit(to);
+
+		decoder.reset();
+		decoder.decode(line, chars, true);
+		decoder.flush(chars);
+	}
+
+	// Makes room for at least the given number of bytes at the end of the output
+	private void ensureOutput(int size) {
+
+		if(output.remaining() < size) {
+
+			int capacity = Math.max(output.capacity() * 2, output.position() + size);
+
+			output.flip();
+			output = ByteBuffer.allocate(capacity).put(output);
+		}
+	}
+
+	// UTF-8, straight into the buffer, which has room for 3 bytes per char
+	static private void encode(CharSequence text, ByteBuffer out) {
+
+		for(int i = 0; i < text.length(); i++) {
+
+			char c = text.charAt(i);
+
+			if(c == '\n' || c == '\r') {
+
+				out.put((byte) ' ');		// one line per command
+
+			} else if(c < 0x80) {
+
+				out.put((byte) c);
+
+			} else if(c < 0x800) {
+
+				out.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+
+			} else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+
+				int cp = Character.toCodePoint(c, text.charAt(++i));
+
+				// Two chars in, four bytes out: still within the 3 per char
+				out.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+				   .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+
+			} else if(Character.isSurrogate(c)) {
+
+				out.put((byte) '?');
+
+			} else {
+
+				out.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+			}
+		}
+	}
+
+	static private int indexOf(byte[] data, int from, int to, byte b) {
+
+		for(int i = from; i < to; i++) {
+
+			if(data[i] == b) {
+
+				return i;
+			}
+		}
+
+		return to;
+	}
+
+	static private boolean matches(byte[] data, int from, int to, byte[] word) {
+
+		if(to - from != word.length) {
+
+			return false;
+		}
+
+		for(int i = 0; i < word.length; i++) {
+
+			if(data[from + i] != word[i]) {
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	static private byte[] bytes(String s) {
+
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+}
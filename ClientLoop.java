@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * The client side counterpart of EventLoop: one selector thread serving any number of
+ * ChatSessions. Only this thread reads from the sessions and calls their listeners; sending
+ * works from any thread, see ChatSession.
+ *
+ *     ClientLoop loop = new ClientLoop();
+ *     loop.start();
+ *     ChatSession session = loop.connect("localhost", 8000, listener);
+ *     session.nick("bot");
+ *
+ * The decoded text of the line being handled is kept here, shared by all the sessions, so
+ * receiving a message allocates nothing.
+ */
+class ClientLoop implements Runnable {
+
+	final Selector selector;
+	private volatile Thread thread;
+	private volatile boolean stopped;
+
+	// Tasks handed off by other threads, run by this loop between two selects
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// The fields of the line being handled, decoded one after the other, and views on them
+	// for the listener. Grown when a line doesn't fit.
+	CharBuffer chars = CharBuffer.allocate(1024);
+	CharBuffer first = chars.duplicate();
+	CharBuffer second = chars.duplicate();
+
+	ClientLoop() throws IOException {
+
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Runs this loop on a thread of its own.
+	 */
+	void start() {
+
+		Thread runner = new Thread(this, "chat-client-loop");
+		runner.setDaemon(true);
+		runner.start();
+	}
+
+	/**
+	 * Tells whether the calling thread is this loop's thread.
+	 */
+	boolean inEventLoop() {
+
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queues a task to be run by this loop.
+	 *
+	 * @param task - the task to run on this loop's thread
+	 */
+	void execute(Runnable task) {
+
+		tasks.add(task);
+
+		if(!inEventLoop()) {
+
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Opens a session with a server. The connection completes on this loop, which then calls
+	 * the listener's connected(); whatever is sent before that is queued.
+	 *
+	 * @param host	   - the server's name or address
+	 * @param port	   - the server's port
+	 * @param listener - called on this loop's thread for everything the server sends
+	 */
+	ChatSession connect(String host, int port, ChatSession.Listener listener) throws IOException {
+
+		// Resolved here, so an unknown host fails the call rather than the session
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+
+		SocketChannel sc = SocketChannel.open();
+		sc.configureBlocking(false);
+
+		ChatSession session = new ChatSession(this, sc, listener);
+
+		execute(() -> {
+
+			try {
+
+				boolean connected = sc.connect(address);
+
+				session.key = sc.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session);
+
+				if(connected) {
+
+					session.connected();
+				}
+
+			} catch(IOException ie) {
+
+				session.close(ie);
+			}
+		});
+
+		return session;
+	}
+
+	/**
+	 * Stops this loop. Its sessions are closed, and run() returns.
+	 */
+	void shutdown() {
+
+		stopped = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+
+		thread = Thread.currentThread();
+
+		while(!stopped) {
+
+			try {
+
+				if(tasks.isEmpty()) {
+
+					selector.select();
+
+				} else {
+
+					selector.selectNow();
+				}
+
+			} catch(IOException ie) {
+
+				Log.error(ie.toString());
+				break;
+			}
+
+			runTasks();
+
+			Set<SelectionKey> selected_keys = selector.selectedKeys();
+			Iterator<SelectionKey> key_iterator = selected_keys.iterator();
+
+			while(key_iterator.hasNext()) {
+
+				SelectionKey key = key_iterator.next();
+				ChatSession session = (ChatSession) key.attachment();
+
+				try {
+
+					if(key.isValid() && key.isConnectable()) {
+
+						session.channel.finishConnect();
+						session.connected();
+					}
+
+					if(key.isValid() && key.isWritable()) {
+
+						session.flush();
+					}
+
+					if(key.isValid() && key.isReadable()) {
+
+						session.read();
+					}
+
+				} catch(IOException ie) {
+
+					session.close(ie);
+
+				} catch(RuntimeException re) {
+
+					// A listener failed; the session goes on
+					Log.error("Listener failed on " + thread.getName() + ": " + re);
+				}
+			}
+
+			selected_keys.clear();
+		}
+
+		for(SelectionKey key : selector.keys()) {
+
+			((ChatSession) key.attachment()).close(null);
+		}
+
+		try {
+			selector.close();
+		} catch(IOException ie) { }
+	}
+
+	private void runTasks() {
+
+		Runnable task;
+
+		while((task = tasks.poll()) != null) {
+
+			try {
+
+				task.run();
+
+			} catch(RuntimeException re) {
+
+				Log.error("Task failed on " + thread.getName() + ": " + re);
+			}
+		}
+	}
+
+	// Makes room for at least the given number of chars in the decoded line
+	void ensureChars(int size) {
+
+		if(chars.capacity() < size) {
+
+			chars  = CharBuffer.allocate(Integer.highestOneBit(size) << 1);
+			first  = chars.duplicate();
+			second = chars.duplicate();
+		}
+	}
+}
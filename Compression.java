@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Optional DEFLATE compression of what the server sends, for clients on busy rooms. A client
+ * asks for it with /compress, or COMPRESS with the binary protocol; the server answers COMPRESS,
+ * uncompressed, and everything it sends after that is a sequence of blocks:
+ *
+ *     kind (1 byte) | length (2 bytes, big endian) | raw DEFLATE data
+ *
+ * STREAM blocks continue the connection's own stream, so every message is compressed against
+ * everything sent before it: nicknames, room names and the protocol's keywords soon cost a few
+ * bits each. Each message ends with a sync flush, so it can be inflated as soon as it arrives.
+ *
+ * SHARED blocks stand alone: a room message for a big room is compressed once, against the
+ * dictionary only, and the same block goes to every compressed member. They cost a bit more on
+ * the wire and nothing per recipient on the server. The client inflates them with a fresh
+ * inflater and they don't touch the stream, so they can also be dropped from a slow consumer's
+ * queue like uncompressed room messages.
+ *
+ * Both kinds start from DICTIONARY, so even the first messages compress. Requests aren't
+ * compressed; they are small and few.
+ */
+class Compression {
+
+	static final byte STREAM = 'z';
+	static final byte SHARED = 'Z';
+
+	static final int HEADER	   = 3;
+	static final int MAX_BLOCK = 0xFFFF;
+
+	// Rooms with at least this many members get their messages compressed once, as SHARED blocks
+	static final int SHARED_MIN_POPULATION = 16;
+
+	// What every stream starts from; the most frequent last, since closer matches cost less
+	static final byte[] DICTIONARY = ("STATS connections= PING\nBYE\nERROR\nNEWNICK PRIVATE LEFT JOINED OK\nMESSAGE ")
+										.getBytes(StandardCharsets.US_ASCII);
+
+	// Output scratch of the calling thread, grown when a message deflates to more
+	static private final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	// Deflates standalone blocks for the calling thread, reset every time
+	static private final ThreadLocal<Deflater> once = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+	// One connection's stream; null once ended
+	private Deflater deflater;
+
+	Compression() {
+
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setDictionary(DICTIONARY);
+	}
+
+	/**
+	 * Compresses one message into the connection's stream.
+	 *
+	 * @param bb - the message, from position to limit, which is consumed
+	 * @return STREAM blocks holding it, or null if the stream was ended
+	 */
+	synchronized ByteBuffer deflate(ByteBuffer bb) {
+
+		if(deflater == null) {
+			return null;
+		}
+
+		deflater.setInput(bb);
+
+		int n	   = run(deflater);
+		byte[] out = scratch.get();
+
+		// Split in blocks the length field can describe; a sync flush never outputs nothing
+		ByteBuffer blocks = ByteBuffer.allocate(n + (n + MAX_BLOCK - 1) / MAX_BLOCK * HEADER);
+
+		for(int from = 0; from < n; from += MAX_BLOCK) {
+
+			int length = Math.min(MAX_BLOCK, n - from);
+
+			blocks.put(STREAM).putShort((short) length).put(out, from, length);
+		}
+
+		blocks.flip();
+
+		return blocks;
+	}
+
+	/**
+	 * Frees the stream. Called when the connection is closed; deflate() does nothing afterwards.
+	 */
+	synchronized void end() {
+
+		if(deflater != null) {
+
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	/**
+	 * Compresses a message once for many connections.
+	 *
+	 * @param bb - the message, from position to limit; left as is
+	 * @return a read-only SHARED block, or null if the message doesn't fit in one
+	 */
+	static ByteBuffer deflateShared(ByteBuffer bb) {
+
+		Deflater deflater = once.get();
+
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(bb.duplicate());
+
+		int n	   = run(deflater);
+		byte[] out = scratch.get();
+
+		if(n > MAX_BLOCK) {
+			return null;
+		}
+
+		ByteBuffer block = ByteBuffer.allocateDirect(HEADER + n);
+		block.put(SHARED).putShort((short) n).put(out, 0, n).flip();
+
+		return block.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Tells whether a buffer is a SHARED block, already compressed. Nothing the server sends
+	 * uncompressed starts like one: text lines start with a capital keyword, binary frames with
+	 * a small opcode.
+	 */
+	static boolean isBlock(ByteBuffer bb) {
+
+		return bb.hasRemaining() && bb.get(bb.position()) == SHARED;
+	}
+
+	// Deflates all the input with a sync flush into the thread's scratch; how many bytes came out
+	static private int run(Deflater deflater) {
+
+		byte[] out = scratch.get();
+		int n	   = 0;
+
+		while(true) {
+
+			n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+
+			// Filled up: there may be more
+			if(n < out.length) {
+				break;
+			}
+
+			out = Arrays.copyOf(out, out.length * 2);
+			scratch.set(out);
+		}
+
+		return n;
+	}
+
+	/*
+	 * The client side: inflates the blocks a compressed connection receives.
+	 */
+	static class Reader {
+
+		private final Inflater stream = new Inflater(true);
+		private final Inflater shared = new Inflater(true);
+
+		Reader() {
+
+			stream.setDictionary(DICTIONARY);
+		}
+
+		/**
+		 * Inflates every complete block, and leaves an incomplete one for later.
+		 *
+		 * @param blocks - the received blocks, from position to limit; consumed up to the first
+		 * 				   incomplete one
+		 * @param out	 - where to append the inflated bytes, in write mode
+		 * @param max	 - the most 'out' may be grown to
+		 * @return 'out', or a bigger buffer holding the same bytes, after which the inflated ones
+		 */
+		ByteBuffer inflate(ByteBuffer blocks, ByteBuffer out, int max) throws IOException {
+
+			while(blocks.remaining() >= HEADER) {
+
+				int pos	   = blocks.position();
+				int length = (blocks.get(pos + 1) & 0xFF) << 8 | blocks.get(pos + 2) & 0xFF;
+
+				if(blocks.remaining() - HEADER < length) {
+					break;
+				}
+
+				Inflater inflater;
+
+				switch(blocks.get(pos)) {
+
+					case STREAM:
+
+						inflater = stream;
+						break;
+
+					case SHARED:
+
+						inflater = shared;
+						inflater.reset();
+						inflater.setDictionary(DICTIONARY);
+						break;
+
+					default:
+						throw new IOException("Bad compressed block");
+				}
+
+				ByteBuffer block = blocks.duplicate();
+				block.limit(pos + HEADER + length).position(pos + HEADER);
+
+				inflater.setInput(block);
+
+				try {
+
+					// Until the whole block went in, and out wasn't filled up by what came out
+					while(block.hasRemaining() || !out.hasRemaining()) {
+
+						if(!out.hasRemaining()) {
+
+							out = grow(out, max);
+						}
+
+						if(inflater.inflate(out) == 0 && block.hasRemaining() && out.hasRemaining()) {
+
+							throw new IOException("Bad compressed block");
+						}
+					}
+
+				} catch(DataFormatException dfe) {
+
+					throw new IOException("Bad compressed block: " + dfe.getMessage());
+				}
+
+				blocks.position(pos + HEADER + length);
+			}
+
+			return out;
+		}
+
+		/**
+		 * Frees the inflaters, once the connection is closed.
+		 */
+		void end() {
+
+			stream.end();
+			shared.end();
+		}
+
+		static private ByteBuffer grow(ByteBuffer out, int max) throws IOException {
+
+			if(out.capacity() >= max) {
+
+				throw new IOException("Line too long");
+			}
+
+			out.flip();
+
+			return ByteBuffer.allocate(Math.min(max, out.capacity() * 2)).put(out);
+		}
+	}
+}
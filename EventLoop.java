@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+/*
+ * A selector thread. Every connection is owned by exactly one loop: only that loop reads from it,
+ * writes to it and touches its Client state. Work for a connection owned by another loop is handed
+ * off with execute(), which queues the task and wakes the owner's selector up.
+ */
+class EventLoop implements Runnable {
+
+	// Index of this loop; used to pick the loop's slice of shared structures (e.g. room members)
+	final int id;
+
+	final Selector selector;
+	private final Thread thread;
+
+	// Set when the selector failed and the loop ended; the acceptor skips it from then on
+	volatile boolean stopped;
+
+	// Tasks handed off by other threads, run by this loop between two selects
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// A pre-allocated buffer for the received data
+	final ByteBuffer buffer = ByteBuffer.allocate(16384);
+
+	// Buffers for the incomplete lines of this loop's connections
+	final BufferPool pool = new BufferPool();
+
+	// Most buffers passed to one gathering write
+	static final int GATHER = 64;
+
+	// Longest output stays queued during a pass before it's flushed anyway
+	static private final long MAX_FLUSH_DELAY_NANOS = 1_000_000;
+
+	// Clients written to during this pass, flushed at its end; and when the first one was added
+	private final ArrayList<ChatServer.Client> dirty = new ArrayList<>();
+	private long dirty_since;
+
+	// Scratch array for gathering writes
+	final ByteBuffer[] gather = new ByteBuffer[GATHER];
+
+	// Idle deadlines of this loop's connections, and the time the current iteration started
+	final TimingWheel wheel = new TimingWheel(TimingWheel.now());
+	long now;
+
+	EventLoop(int id) throws IOException {
+
+		this(id, loop -> new Thread(loop, "chat-loop-" + id));
+	}
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param id	 - the loop's index
+	 * @param thread - makes the thread that runs the given loop, and that inEventLoop() tells
+	 */
+	EventLoop(int id, Function<Runnable, Thread> thread) throws IOException {
+
+		this.id       = id;
+		this.selector = Selector.open();
+		this.thread   = thread.apply(this);
+	}
+
+	void start() {
+
+		thread.start();
+	}
+
+	/**
+	 * Tells whether the calling thread is this loop's thread.
+	 */
+	boolean inEventLoop() {
+
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Queues a task to be run by this loop.
+	 *
+	 * @param task - the task to run on this loop's thread
+	 */
+	void execute(Runnable task) {
+
+		tasks.add(task);
+
+		if(!inEventLoop()) {
+
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Hands a freshly accepted connection over to this loop.
+	 *
+	 * @param sc - the accepted socket channel
+	 */
+	void register(SocketChannel sc) {
+
+		execute(() -> {
+
+			try {
+
+				// Make sure to make it non-blocking, so we can use a selector on it.
+				sc.configureBlocking(false);
+
+				// Create a new Client object and register it with the selector, for reading
+				ChatServer.Client client = new ChatServer.Client(sc, this);
+				client.key = sc.register(selector, SelectionKey.OP_READ, client);
+				ChatServer.connected(client);
+
+			} catch(IOException ie) {
+
+				Log.error("Error registering " + sc + ": " + ie);
+
+				try {
+					sc.close();
+				} catch(IOException ie2) { }
+			}
+		});
+	}
+
+	/**
+	 * Adds a client with queued output to the ones to flush at the end of this pass.
+	 *
+	 * @param client - a client owned by this loop
+	 */
+	void markDirty(ChatServer.Client client) {
+
+		if(dirty.isEmpty()) {
+
+			dirty_since = System.nanoTime();
+		}
+
+		client.dirty = true;
+		dirty.add(client);
+	}
+
+	/**
+	 * Flushes every client written to since the last flush. Closing a client that failed may
+	 * write to others, which are flushed too.
+	 */
+	void flushDirty() {
+
+		for(int i = 0; i < dirty.size(); i++) {
+
+			ChatServer.Client client = dirty.get(i);
+			client.dirty = false;
+
+			if(!client.key.isValid()) {
+				continue;
+			}
+
+			try {
+
+				ChatServer.flush(client);
+
+			} catch(IOException ie) {
+
+				ChatServer.close(client, "Closed");
+
+			} catch(RuntimeException re) {
+
+				failed(client, re);
+			}
+		}
+
+		dirty.clear();
+	}
+
+	private void runTasks() {
+
+		Runnable task;
+
+		while((task = tasks.poll()) != null) {
+
+			try {
+
+				task.run();
+
+			} catch(RuntimeException re) {
+
+				Log.error("Task failed on " + thread.getName() + ": " + re);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+
+		while(true) {
+
+			try {
+				// Don't block if a task was queued from within this loop, nor past the next tick
+				if(!tasks.isEmpty()) {
+
+					selector.selectNow();
+
+				} else if(wheel.isEmpty()) {
+
+					selector.select();
+
+				} else {
+
+					selector.select(wheel.untilNextTick(TimingWheel.now()));
+				}
+
+			} catch(IOException ie) {
+
+				stop(ie);
+				return;
+			}
+
+			long started = System.nanoTime();
+			now			 = TimingWheel.now();
+
+			try {
+
+				pass();
+
+			} catch(RuntimeException re) {
+
+				Log.error("Error on " + thread.getName() + ": " + re);
+				selector.selectedKeys().clear();
+			}
+
+			ChatServer.metrics.loopIteration(System.nanoTime() - started);
+		}
+	}
+
+	// Runs the tasks, the selected keys, the timers and the flushes of one iteration
+	private void pass() {
+
+		runTasks();
+
+		// Get the keys corresponding to the activity that has been
+		// detected, and process them one by one
+		Set<SelectionKey> selected_keys = selector.selectedKeys();
+
+		Iterator<SelectionKey> key_iterator = selected_keys.iterator();
+
+		while(key_iterator.hasNext()) {
+
+			SelectionKey key = key_iterator.next();
+
+			if(key.isValid() && key.isWritable()) {
+
+				processWrite(key);
+			}
+
+			if(key.isValid() && key.isReadable()) {
+
+				processKey(key);
+			}
+
+			// Don't hold output back for the whole of a long pass
+			if(!dirty.isEmpty() && System.nanoTime() - dirty_since > MAX_FLUSH_DELAY_NANOS) {
+
+				flushDirty();
+			}
+		}
+
+		// We remove the selected_keys and key_iterator, because we've dealt with them.
+		selected_keys.clear();
+
+		wheel.advance(now);
+		flushDirty();
+	}
+
+	// The selector failed: no connection of this loop can be served anymore, so they're closed
+	private void stop(IOException cause) {
+
+		stopped = true;
+		Log.error(thread.getName() + " stopped, closing its connections: " + cause);
+
+		try {
+
+			for(SelectionKey key : selector.keys()) {
+
+				if(key.attachment() instanceof ChatServer.Client) {
+
+					ChatServer.close((ChatServer.Client) key.attachment(), "Closed");
+				}
+			}
+
+		} catch(RuntimeException re) {
+
+			Log.error("Error closing the connections of " + thread.getName() + ": " + re);
+		}
+	}
+
+	// A handler failed on a client: only that client is closed, the loop goes on
+	private void failed(ChatServer.Client client, RuntimeException re) {
+
+		Log.error("Error serving connection #" + client.id + ": " + re);
+
+		try {
+
+			ChatServer.close(client, "Closed");
+
+		} catch(RuntimeException re2) {
+
+			Log.error("Error closing connection #" + client.id + ": " + re2);
+		}
+	}
+
+	private void processKey(SelectionKey key) {
+
+		ChatServer.Client client = (ChatServer.Client) key.attachment();
+		SocketChannel sc 		 = client.channel;
+
+		try {
+			// It's incoming data on a connection -- process it
+			boolean ok = ChatServer.processInput(sc, client);
+
+			// If the connection is dead, remove it from every structure and close it
+			if(!ok) {
+
+				ChatServer.close(client, "Closing connection to");
+			}
+
+		} catch(IOException ie) {
+
+			ChatServer.close(client, "Closed");
+
+		} catch(RuntimeException re) {
+
+			failed(client, re);
+		}
+	}
+
+	private void processWrite(SelectionKey key) {
+
+		ChatServer.Client client = (ChatServer.Client) key.attachment();
+
+		try {
+			// The socket can take more data -- send what's queued for it
+			ChatServer.flush(client);
+
+		} catch(IOException ie) {
+
+			ChatServer.close(client, "Closed");
+
+		} catch(RuntimeException re) {
+
+			failed(client, re);
+		}
+	}
+}
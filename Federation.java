@@ -0,0 +1,1108 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/*
+ * Several ChatServer processes serving one chat: rooms and private messages span all of them,
+ * and nicknames are unique across them. Enabled with --federation port, the port the other
+ * nodes connect to, and a --peer host:port for each of them.
+ *
+ * The nodes form a full mesh of links, all served by the "chat-federation" selector thread.
+ * Each node dials every peer and only writes to the links it dialed, and only reads from the
+ * links it accepted; the first frame on a link is HELLO with the dialer's federation port,
+ * which tells the other end who it is. Links that go down are dialed again every second.
+ *
+ * Every node tells its peers which rooms it has members in and which nicknames it holds, all
+ * of it again whenever a link comes up. A room message or a JOINED, LEFT or NEWNICK event goes
+ * only to the peers with members in its room, and a private message only to the peer holding
+ * its recipient. A nickname is claimed from every peer that is up before it's taken; a single
+ * denial, or no answer within CLAIM_TIMEOUT_MILLIS, fails the claim.
+ *
+ * Link frames, in both directions:
+ *
+ *     opcode (1 byte) | payload length (4 bytes, big endian) | payload
+ *
+ * with the same payload layout as BinaryProtocol: fields, each a 2 byte length and its bytes.
+ *
+ *   HELLO		 port				  CLAIM	  nick id
+ *   INTEREST	 room				  GRANT	  id
+ *   NO_INTEREST room				  DENY	  id
+ *   HOLD		 nick				  MESSAGE room nick message
+ *   RELEASE	 nick				  EVENT	  room kind nick [new_nick]
+ *								  PRIVATE recipient sender message
+ */
+class Federation implements Runnable {
+
+	static private final byte HELLO		  = 1;
+	static private final byte INTEREST	  = 2;
+	static private final byte NO_INTEREST = 3;
+	static private final byte HOLD		  = 4;
+	static private final byte RELEASE	  = 5;
+	static private final byte CLAIM		  = 6;
+	static private final byte GRANT		  = 7;
+	static private final byte DENY		  = 8;
+	static private final byte MESSAGE	  = 9;
+	static private final byte EVENT		  = 10;		// kind is BinaryProtocol.JOINED, LEFT or NEWNICK
+	static private final byte PRIVATE	  = 11;
+
+	static private final int HEADER	   = 5;
+	static private final int MAX_FRAME = 256 * 1024;
+
+	// Most bytes queued for a peer whose link doesn't keep up; more frames are dropped
+	static private final long MAX_QUEUED = 64L << 20;
+
+	static private final long RETRY_MILLIS		   = 1000;
+	static private final long CLAIM_TIMEOUT_MILLIS = 3000;
+
+	static private final Peer[] NONE = new Peer[0];
+
+	/*
+	 * Frames for a peer's current dialed link, queued by any thread. Replaced every time the link
+	 * comes up, so nothing queued for a previous link ever reaches the new one.
+	 */
+	static private class Outbox {
+
+		final ConcurrentLinkedQueue<ByteBuffer> frames = new ConcurrentLinkedQueue<>();
+		final AtomicLong bytes = new AtomicLong();
+	}
+
+	/*
+	 * Another node. Only the federation thread touches its links.
+	 */
+	static private class Peer {
+
+		final InetSocketAddress address;
+
+		// The link this node dialed; the outbox is null while it's not connected
+		SocketChannel out;
+		SelectionKey out_key;
+		volatile Outbox outbox;
+		boolean blocked;		// waiting for OP_WRITE
+		long retry_at;
+
+		// The link the peer dialed, once its HELLO came
+		Link in;
+
+		Peer(InetSocketAddress address) {
+
+			this.address = address;
+		}
+
+		boolean isUp() {
+
+			return outbox != null && in != null;
+		}
+
+		@Override
+		public String toString() {
+
+			return address.toString();
+		}
+	}
+
+	/*
+	 * A link accepted from a peer, read-only.
+	 */
+	static private class Link {
+
+		final SocketChannel channel;
+		ByteBuffer buffer = ByteBuffer.allocate(16384);
+		Peer peer;				// null until HELLO
+
+		Link(SocketChannel channel) {
+
+			this.channel = channel;
+		}
+	}
+
+	/*
+	 * A nickname this node is claiming, and the peers it's waiting for.
+	 */
+	static private class Claim {
+
+		final String nick;
+		final Consumer<Boolean> done;
+		final long deadline;
+
+		final ArrayList<Peer> asked = new ArrayList<>();
+		final HashSet<Peer> waiting = new HashSet<>();
+		boolean denied;
+
+		Claim(String nick, Consumer<Boolean> done, long deadline) {
+
+			this.nick	  = nick;
+			this.done	  = done;
+			this.deadline = deadline;
+		}
+	}
+
+	private final int port;
+	private final Peer[] peers;
+	private final Selector selector;
+
+	// Tasks handed off by other threads, and whether the selector was woken up for them
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean awake = new AtomicBoolean();
+
+	// Peers with members in each room, and the peer holding each remote nickname; updated by
+	// the federation thread, read by every thread
+	private final ConcurrentHashMap<String, Peer[]> interested	 = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Peer> remote_nicks = new ConcurrentHashMap<>();
+
+	// What this node told its peers: the rooms it has members in, the nicknames it holds
+	private final HashSet<String> announced_rooms = new HashSet<>();
+	private final HashSet<String> announced_nicks = new HashSet<>();
+
+	private final HashMap<Long, Claim> claims = new HashMap<>();
+	private long next_claim;
+
+	// Scratch array for gathering writes
+	private final ByteBuffer[] gather = new ByteBuffer[64];
+
+	/**
+	 * Opens the federation port. Nothing is dialed before start().
+	 *
+	 * @param port	- the port peers connect to
+	 * @param peers - the other nodes' federation addresses
+	 */
+	Federation(int port, ArrayList<InetSocketAddress> peers) throws IOException {
+
+		this.port	  = port;
+		this.peers	  = new Peer[peers.size()];
+		this.selector = Selector.open();
+
+		for(int i = 0; i < this.peers.length; i++) {
+
+			this.peers[i] = new Peer(peers.get(i));
+		}
+
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.configureBlocking(false);
+		ssc.bind(new InetSocketAddress(port));
+		ssc.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	void start() {
+
+		Thread thread = new Thread(this, "chat-federation");
+		thread.setDaemon(true);
+		thread.start();
+
+		Log.info("Federation on port " + port + " with " + peers.length + " peer(s)");
+	}
+
+	/*
+	 * Called by any thread.
+	 */
+
+	/**
+	 * Tells the peers whether this node still has members in a room, once its population went
+	 * from or to 0.
+	 *
+	 * @param room - the room's name
+	 */
+	void roomChanged(String room) {
+
+		execute(() -> announceRoom(room));
+	}
+
+	/**
+	 * Tells the peers whether this node still holds a nickname, once it was taken or released.
+	 *
+	 * @param nick - the nickname
+	 */
+	void nickChanged(String nick) {
+
+		execute(() -> announceNick(nick));
+	}
+
+	/**
+	 * Tells whether another node holds a nickname.
+	 *
+	 * @param nick - the nickname
+	 */
+	boolean isRemote(String nick) {
+
+		return remote_nicks.containsKey(nick);
+	}
+
+	/**
+	 * Claims a nickname from every peer that is up. The caller must already hold it on this
+	 * node, so that concurrent claims from peers are denied.
+	 *
+	 * @param nick - the nickname
+	 * @param done - called on the federation thread with whether every peer granted it
+	 */
+	void claim(String nick, Consumer<Boolean> done) {
+
+		execute(() -> startClaim(nick, done));
+	}
+
+	/**
+	 * Forwards a room message to the peers with members in the room.
+	 *
+	 * @param room	  - the room's name
+	 * @param nick	  - the sender's encoded nickname
+	 * @param message - the buffer holding the message content
+	 * @param offset  - where the content starts in 'message'
+	 * @param length  - the content's length
+	 */
+	void message(String room, byte[] nick, byte[] message, int offset, int length) {
+
+		Peer[] to = interested.getOrDefault(room, NONE);
+
+		if(to.length == 0) {
+			return;
+		}
+
+		ByteBuffer frame = frame(MESSAGE, message, offset, length, bytes(room), nick);
+
+		for(Peer peer : to) {
+
+			send(peer, frame);
+		}
+	}
+
+	/**
+	 * Forwards a room event to the peers with members in the room.
+	 *
+	 * @param kind	- BinaryProtocol.JOINED, LEFT or NEWNICK
+	 * @param room	- the room's name
+	 * @param names - the event's encoded nicknames
+	 */
+	void event(byte kind, String room, byte[]... names) {
+
+		Peer[] to = interested.getOrDefault(room, NONE);
+
+		if(to.length == 0) {
+			return;
+		}
+
+		byte[][] fields = new byte[names.length + 2][];
+		fields[0] = bytes(room);
+		fields[1] = new byte[] { kind };
+		System.arraycopy(names, 0, fields, 2, names.length);
+
+		ByteBuffer frame = frame(EVENT, null, 0, 0, fields);
+
+		for(Peer peer : to) {
+
+			send(peer, frame);
+		}
+	}
+
+	/**
+	 * Forwards a private message to the peer holding its recipient.
+	 *
+	 * @param recipient - the recipient's nickname
+	 * @param sender	- the sender's encoded nickname
+	 * @param message	- the buffer holding the message content
+	 * @param offset	- where the content starts in 'message'
+	 * @param length	- the content's length
+	 * @return false if no peer holds the recipient
+	 */
+	boolean privateMessage(String recipient, byte[] sender, byte[] message, int offset, int length) {
+
+		Peer peer = remote_nicks.get(recipient);
+
+		if(peer == null) {
+
+			return false;
+		}
+
+		send(peer, frame(PRIVATE, message, offset, length, bytes(recipient), sender));
+
+		return true;
+	}
+
+	/*
+	 * Federation thread.
+	 */
+
+	@Override
+	public void run() {
+
+		while(true) {
+
+			try {
+
+				selector.select(RETRY_MILLIS);
+
+			} catch(IOException ie) {
+
+				Log.error("Federation stopped: " + ie);
+				return;
+			}
+
+			awake.set(false);
+
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+			while(keys.hasNext()) {
+
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				try {
+
+					processKey(key);
+
+				} catch(IOException ie) {
+
+					failed(key, ie);
+				}
+			}
+
+			long now = TimingWheel.now();
+
+			for(Peer peer : peers) {
+
+				if(peer.out == null && now >= peer.retry_at) {
+
+					dial(peer, now);
+				}
+			}
+
+			expireClaims(now);
+
+			for(Peer peer : peers) {
+
+				flush(peer);
+			}
+		}
+	}
+
+	private void processKey(SelectionKey key) throws IOException {
+
+		if(!key.isValid()) {
+			return;
+		}
+
+		if(key.isAcceptable()) {
+
+			SocketChannel sc = ((ServerSocketChannel) key.channel()).accept();
+
+			if(sc != null) {
+
+				sc.configureBlocking(false);
+				sc.register(selector, SelectionKey.OP_READ, new Link(sc));
+			}
+
+			return;
+		}
+
+		if(key.attachment() instanceof Link) {
+
+			read((Link) key.attachment());
+			return;
+		}
+
+		Peer peer = (Peer) key.attachment();
+
+		if(key.isConnectable()) {
+
+			peer.out.finishConnect();
+			connected(peer);
+		}
+
+		if(key.isValid() && key.isWritable()) {
+
+			peer.blocked = false;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		// Peers never write to the links they accepted, so this is the link closing
+		if(key.isValid() && key.isReadable()) {
+
+			ByteBuffer scratch = ByteBuffer.allocate(64);
+
+			if(peer.out.read(scratch) < 0) {
+
+				throw new IOException("closed by peer");
+			}
+		}
+	}
+
+	private void failed(SelectionKey key, IOException ie) {
+
+		if(key.attachment() instanceof Link) {
+
+			closeLink((Link) key.attachment(), ie.toString());
+
+		} else if(key.attachment() instanceof Peer) {
+
+			disconnect((Peer) key.attachment(), ie.toString());
+		}
+	}
+
+	private void dial(Peer peer, long now) {
+
+		peer.retry_at = now + RETRY_MILLIS;
+
+		try {
+
+			peer.out = SocketChannel.open();
+			peer.out.configureBlocking(false);
+
+			boolean connected = peer.out.connect(peer.address);
+
+			peer.out_key = peer.out.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, peer);
+
+			if(connected) {
+
+				connected(peer);
+			}
+
+		} catch(IOException ie) {
+
+			disconnect(peer, null);
+		}
+	}
+
+	// The dialed link is up: it starts with HELLO and everything the peer must know about us
+	private void connected(Peer peer) {
+
+		Outbox outbox = new Outbox();
+
+		queue(outbox, frame(HELLO, null, 0, 0, bytes(Integer.toString(port))));
+
+		for(String room : announced_rooms) {
+
+			queue(outbox, frame(INTEREST, null, 0, 0, bytes(room)));
+		}
+
+		for(String nick : announced_nicks) {
+
+			queue(outbox, frame(HOLD, null, 0, 0, bytes(nick)));
+		}
+
+		peer.out_key.interestOps(SelectionKey.OP_READ);
+		peer.outbox = outbox;
+
+		Log.info("Connected to peer " + peer);
+	}
+
+	// Closes the dialed link, to be dialed again later; why is null if it never came up
+	private void disconnect(Peer peer, String why) {
+
+		if(why != null && peer.outbox != null) {
+
+			Log.error("Lost peer " + peer + ": " + why);
+		}
+
+		peer.outbox  = null;
+		peer.blocked = false;
+
+		try {
+
+			if(peer.out != null) {
+
+				peer.out.close();
+			}
+
+		} catch(IOException ie) { }
+
+		peer.out	 = null;
+		peer.out_key = null;
+	}
+
+	// Closes an accepted link, and forgets what its peer told us
+	private void closeLink(Link link, String why) {
+
+		try {
+			link.channel.close();
+		} catch(IOException ie) { }
+
+		Peer peer = link.peer;
+
+		if(peer == null || peer.in != link) {
+			return;
+		}
+
+		Log.error("Link from peer " + peer + " closed: " + why);
+
+		peer.in = null;
+
+		for(String room : new ArrayList<>(interested.keySet())) {
+
+			removeInterest(room, peer);
+		}
+
+		remote_nicks.values().removeIf(owner -> owner == peer);
+
+		// It can't hold anything up anymore
+		for(Claim claim : new ArrayList<>(claims.values())) {
+
+			answer(claim, peer, true);
+		}
+	}
+
+	private void read(Link link) throws IOException {
+
+		ByteBuffer buffer = link.buffer;
+
+		if(!buffer.hasRemaining()) {
+
+			buffer = link.buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+		}
+
+		if(link.channel.read(buffer) < 0) {
+
+			closeLink(link, "end of stream");
+			return;
+		}
+
+		byte[] data = buffer.array();
+		int limit	= buffer.position();
+		int pos		= 0;
+
+		while(limit - pos >= HEADER) {
+
+			int length = (data[pos + 1] & 0xFF) << 24 | (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 8 | data[pos + 4] & 0xFF;
+
+			if(length < 0 || length > MAX_FRAME) {
+
+				closeLink(link, "frame too long");
+				return;
+			}
+
+			if(limit - pos - HEADER < length) {
+
+				// Make sure the whole frame fits once it's moved to the front
+				if(HEADER + length > buffer.capacity()) {
+
+					buffer = link.buffer = ByteBuffer.allocate(HEADER + length).put(data, pos, limit - pos);
+					return;
+				}
+
+				break;
+			}
+
+			if(!processFrame(link, data[pos], data, pos + HEADER, length)) {
+
+				closeLink(link, "bad frame");
+				return;
+			}
+
+			pos += HEADER + length;
+		}
+
+		System.arraycopy(data, pos, data, 0, limit - pos);
+		buffer.position(limit - pos);
+	}
+
+	// Runs one frame from a peer; false if it's malformed
+	private boolean processFrame(Link link, byte opcode, byte[] data, int offset, int length) {
+
+		// Locate up to four fields
+		int[] starts  = new int[4];
+		int[] lengths = new int[4];
+		int fields	  = 0;
+		int end		  = offset + length;
+
+		for(int pos = offset; pos < end; fields++) {
+
+			if(fields == starts.length || end - pos < 2 || end - pos - 2 < BinaryProtocol.readLength(data, pos)) {
+
+				return false;
+			}
+
+			lengths[fields] = BinaryProtocol.readLength(data, pos);
+			starts[fields]	= pos + 2;
+			pos += 2 + lengths[fields];
+		}
+
+		Peer peer = link.peer;
+
+		if(opcode == HELLO) {
+
+			return fields == 1 && hello(link, string(data, starts[0], lengths[0]));
+		}
+
+		if(peer == null) {
+
+			return false;
+		}
+
+		ChatServer.metrics.federation_received.increment();
+
+		switch(opcode) {
+
+			case INTEREST:
+
+				if(fields != 1) {
+					return false;
+				}
+
+				addInterest(string(data, starts[0], lengths[0]), peer);
+				return true;
+
+			case NO_INTEREST:
+
+				if(fields != 1) {
+					return false;
+				}
+
+				removeInterest(string(data, starts[0], lengths[0]), peer);
+				return true;
+
+			case HOLD: {
+
+				if(fields != 1) {
+					return false;
+				}
+
+				String nick = string(data, starts[0], lengths[0]);
+
+				remote_nicks.put(nick, peer);
+
+				if(ChatServer.nicknames.containsKey(nick)) {
+
+					Log.error("Nickname " + nick + " is held both here and on peer " + peer);
+				}
+
+				return true;
+			}
+
+			case RELEASE:
+
+				if(fields != 1) {
+					return false;
+				}
+
+				remote_nicks.remove(string(data, starts[0], lengths[0]), peer);
+				return true;
+
+			case CLAIM: {
+
+				if(fields != 2) {
+					return false;
+				}
+
+				String nick	 = string(data, starts[0], lengths[0]);
+				Peer owner	 = remote_nicks.get(nick);
+				boolean free = !ChatServer.nicknames.containsKey(nick) && (owner == null || owner == peer);
+
+				// Held for the claimant meanwhile, so our own claims of it are denied
+				if(free) {
+
+					remote_nicks.put(nick, peer);
+				}
+
+				send(peer, frame(free ? GRANT : DENY, data, starts[1], lengths[1]));
+				return true;
+			}
+
+			case GRANT:
+			case DENY: {
+
+				if(fields != 1) {
+					return false;
+				}
+
+				Claim claim = claims.get(readId(data, starts[0], lengths[0]));
+
+				if(claim != null) {
+
+					answer(claim, peer, opcode == GRANT);
+				}
+
+				return true;
+			}
+
+			case MESSAGE:
+
+				if(fields != 3) {
+					return false;
+				}
+
+				ChatServer.remoteMessage(string(data, starts[0], lengths[0]), Arrays.copyOfRange(data, starts[1], starts[1] + lengths[1]),
+										 data, starts[2], lengths[2]);
+				return true;
+
+			case EVENT:
+
+				if(fields < 3 || lengths[1] != 1) {
+					return false;
+				}
+
+				ChatServer.remoteEvent(data[starts[1]], string(data, starts[0], lengths[0]), string(data, starts[2], lengths[2]),
+									   fields > 3 ? string(data, starts[3], lengths[3]) : null);
+				return true;
+
+			case PRIVATE:
+
+				if(fields != 3) {
+					return false;
+				}
+
+				ChatServer.remotePrivate(string(data, starts[0], lengths[0]), Arrays.copyOfRange(data, starts[1], starts[1] + lengths[1]),
+										 data, starts[2], lengths[2]);
+				return true;
+		}
+
+		return false;
+	}
+
+	private boolean hello(Link link, String peer_port) {
+
+		InetSocketAddress address;
+
+		try {
+
+			InetSocketAddress remote = (InetSocketAddress) link.channel.getRemoteAddress();
+			address					 = new InetSocketAddress(remote.getAddress(), Integer.parseInt(peer_port));
+
+		} catch(IOException | NumberFormatException e) {
+
+			return false;
+		}
+
+		for(Peer peer : peers) {
+
+			if(peer.address.equals(address)) {
+
+				// A newer link from a peer that restarted replaces the old one
+				if(peer.in != null) {
+
+					closeLink(peer.in, "replaced");
+				}
+
+				peer.in	  = link;
+				link.peer = peer;
+
+				Log.info("Accepted link from peer " + peer);
+				return true;
+			}
+		}
+
+		Log.error("Link from unknown node " + address + " refused");
+		return false;
+	}
+
+	private void addInterest(String room, Peer peer) {
+
+		Peer[] current = interested.getOrDefault(room, NONE);
+
+		for(Peer p : current) {
+
+			if(p == peer) {
+				return;
+			}
+		}
+
+		Peer[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = peer;
+
+		interested.put(room, updated);
+	}
+
+	private void removeInterest(String room, Peer peer) {
+
+		Peer[] current = interested.get(room);
+
+		if(current == null) {
+			return;
+		}
+
+		Peer[] updated = new Peer[current.length];
+		int n		   = 0;
+
+		for(Peer p : current) {
+
+			if(p != peer) {
+
+				updated[n++] = p;
+			}
+		}
+
+		if(n == 0) {
+
+			interested.remove(room);
+
+		} else if(n < current.length) {
+
+			interested.put(room, Arrays.copyOf(updated, n));
+		}
+	}
+
+	private void announceRoom(String room) {
+
+		ChatServer.Room r = ChatServer.rooms.get(room);
+		boolean members	  = r != null && r.population.get() > 0;
+
+		if(members ? announced_rooms.add(room) : announced_rooms.remove(room)) {
+
+			sendAll(frame(members ? INTEREST : NO_INTEREST, null, 0, 0, bytes(room)));
+		}
+	}
+
+	private void announceNick(String nick) {
+
+		boolean held = ChatServer.nicknames.containsKey(nick);
+
+		if(held ? announced_nicks.add(nick) : announced_nicks.remove(nick)) {
+
+			sendAll(frame(held ? HOLD : RELEASE, null, 0, 0, bytes(nick)));
+		}
+	}
+
+	private void startClaim(String nick, Consumer<Boolean> done) {
+
+		Claim claim = new Claim(nick, done, TimingWheel.now() + CLAIM_TIMEOUT_MILLIS);
+		long id		= next_claim++;
+
+		for(Peer peer : peers) {
+
+			if(peer.isUp()) {
+
+				claim.asked.add(peer);
+				claim.waiting.add(peer);
+				send(peer, frame(CLAIM, null, 0, 0, bytes(nick), idBytes(id)));
+			}
+		}
+
+		if(claim.waiting.isEmpty()) {
+
+			done.accept(true);
+			return;
+		}
+
+		claims.put(id, claim);
+	}
+
+	private void answer(Claim claim, Peer peer, boolean granted) {
+
+		if(!claim.waiting.remove(peer)) {
+			return;
+		}
+
+		claim.denied |= !granted;
+
+		if(claim.waiting.isEmpty()) {
+
+			finish(claim);
+		}
+	}
+
+	private void finish(Claim claim) {
+
+		claims.values().remove(claim);
+
+		// Peers that granted it hold it for us until told otherwise
+		if(claim.denied) {
+
+			for(Peer peer : claim.asked) {
+
+				send(peer, frame(RELEASE, null, 0, 0, bytes(claim.nick)));
+			}
+		}
+
+		claim.done.accept(!claim.denied);
+	}
+
+	private void expireClaims(long now) {
+
+		for(Claim claim : new ArrayList<>(claims.values())) {
+
+			if(now >= claim.deadline) {
+
+				claim.denied = true;
+				claim.waiting.clear();
+				finish(claim);
+			}
+		}
+	}
+
+	// Writes what the peer's link takes
+	private void flush(Peer peer) {
+
+		Outbox outbox = peer.outbox;
+
+		if(outbox == null || peer.blocked) {
+			return;
+		}
+
+		try {
+
+			while(!outbox.frames.isEmpty()) {
+
+				int n = 0;
+
+				for(ByteBuffer frame : outbox.frames) {
+
+					gather[n++] = frame;
+
+					if(n == gather.length) {
+						break;
+					}
+				}
+
+				long written;
+
+				try {
+
+					written = peer.out.write(gather, 0, n);
+
+				} finally {
+
+					Arrays.fill(gather, 0, n, null);
+				}
+
+				outbox.bytes.addAndGet(-written);
+
+				int sent = 0;
+
+				while(sent < n && !outbox.frames.peek().hasRemaining()) {
+
+					outbox.frames.poll();
+					sent++;
+				}
+
+				if(sent < n) {
+
+					peer.blocked = true;
+					peer.out_key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+
+		} catch(IOException ie) {
+
+			disconnect(peer, ie.toString());
+		}
+	}
+
+	private void sendAll(ByteBuffer frame) {
+
+		for(Peer peer : peers) {
+
+			send(peer, frame);
+		}
+	}
+
+	// Queues a frame for a peer, if its link is up; any thread
+	private void send(Peer peer, ByteBuffer frame) {
+
+		Outbox outbox = peer.outbox;
+
+		if(outbox == null) {
+			return;
+		}
+
+		if(outbox.bytes.get() > MAX_QUEUED) {
+
+			ChatServer.metrics.federation_dropped.increment();
+			return;
+		}
+
+		queue(outbox, frame);
+		ChatServer.metrics.federation_forwarded.increment();
+
+		if(!awake.getAndSet(true)) {
+
+			selector.wakeup();
+		}
+	}
+
+	static private void queue(Outbox outbox, ByteBuffer frame) {
+
+		outbox.bytes.addAndGet(frame.remaining());
+		outbox.frames.add(frame.duplicate());
+	}
+
+	private void execute(Runnable task) {
+
+		tasks.add(task);
+
+		if(!awake.getAndSet(true)) {
+
+			selector.wakeup();
+		}
+	}
+
+	private void runTasks() {
+
+		Runnable task;
+
+		while((task = tasks.poll()) != null) {
+
+			try {
+
+				task.run();
+
+			} catch(RuntimeException re) {
+
+				Log.error("Task failed on chat-federation: " + re);
+			}
+		}
+	}
+
+	/**
+	 * Encodes a link frame: the given whole fields, then a slice of a buffer as the last field
+	 * if 'body' isn't null.
+	 */
+	static private ByteBuffer frame(byte opcode, byte[] body, int offset, int length, byte[]... fields) {
+
+		int payload = body == null ? 0 : 2 + length;
+
+		for(byte[] field : fields) {
+
+			payload += 2 + field.length;
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(HEADER + payload);
+		bb.put(opcode).putInt(payload);
+
+		for(byte[] field : fields) {
+
+			bb.putShort((short) field.length).put(field);
+		}
+
+		if(body != null) {
+
+			bb.putShort((short) length).put(body, offset, length);
+		}
+
+		bb.flip();
+
+		return bb.asReadOnlyBuffer();
+	}
+
+	static private byte[] bytes(String s) {
+
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static private String string(byte[] data, int offset, int length) {
+
+		return new String(data, offset, length, StandardCharsets.UTF_8);
+	}
+
+	static private byte[] idBytes(long id) {
+
+		return ByteBuffer.allocate(8).putLong(id).array();
+	}
+
+	static private long readId(byte[] data, int offset, int length) {
+
+		return length == 8 ? ByteBuffer.wrap(data, offset, 8).getLong() : -1;
+	}
+}
@@ -0,0 +1,703 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Files sent to a user or to the sender's room. The client sends
+ *
+ *     /send <nick|room> <name> <size>		or the binary SEND frame: target, name, size
+ *
+ * followed by exactly 'size' bytes, which the server writes to a spool file as they come,
+ * straight from the socket with FileChannel.transferFrom(). The target is the sender's room if
+ * it names it, a user otherwise. Once the last byte is in, the sender gets OK, or ERROR if
+ * there's nobody to send to, and each recipient gets
+ *
+ *     FILE <sender> <name> <size>			or the binary FILE frame: sender, name, size
+ *
+ * followed by the bytes, sent from the spool with FileChannel.transferTo(), so they never go
+ * through the heap or a charset. The header is queued like any other output; the content goes
+ * out once the header has, before anything queued after it. The spool is shared by all the
+ * recipients and deleted when the last one is done.
+ *
+ * Files take turns with chat traffic: an event loop moves at most CHUNK bytes of a file, either
+ * way, per connection and pass, and then goes on with its other connections. Under a budget for
+ * queued output, the content isn't counted since it's on disk, and never dropped.
+ *
+ * With ThreadEngine, the sender's thread writes the file to its recipients a CHUNK to each in
+ * turn, blocking like every write of that engine, and holds a recipient's write lock for a
+ * chunk at a time. What other threads write to a recipient meanwhile is kept and follows the
+ * file, see ChatServer.writeBlocking().
+ *
+ * Files only go to local users that didn't ask for compression, whose stream they'd break, and
+ * aren't forwarded to the other nodes of a federation. Compression is checked on the recipient's
+ * own thread, where /compress sets it, so a recipient that asked for it is skipped even after
+ * the sender was told OK.
+ *
+ * An instance holds one client's transfers, and is only used by the client's own thread.
+ */
+class FileTransfer {
+
+	// Most bytes of a file read from or written to one connection per pass of its event loop
+	static final int CHUNK = 64 << 10;
+
+	// Where uploads are spooled, and the biggest one accepted; set by --spool and --max-file
+	static Path spool_directory = Paths.get(System.getProperty("java.io.tmpdir"));
+	static long max_size = 64 << 20;
+
+	static private final byte[] FILE_PREFIX = "FILE ".getBytes(StandardCharsets.US_ASCII);
+
+	// What the client is sending, null if nothing
+	Upload upload;
+
+	// What the client is being sent: the file whose header is out, and those whose header is
+	// queued, in order
+	Download sending;
+	final ArrayDeque<Download> queued = new ArrayDeque<>(1);
+
+	/*
+	 * A spooled file, deleted when closed. Released by the upload once it's handed to the
+	 * recipients, and by each of them once it was sent.
+	 */
+	static private class Spool {
+
+		final FileChannel channel;
+		final long size;
+		final AtomicInteger users = new AtomicInteger(1);
+
+		Spool(long size) throws IOException {
+
+			Path path = Files.createTempFile(spool_directory, "send-", ".spool");
+
+			this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			this.size	 = size;
+		}
+
+		void retain() {
+
+			users.incrementAndGet();
+		}
+
+		void release() {
+
+			if(users.decrementAndGet() == 0) {
+
+				try {
+
+					channel.close();
+
+				} catch(IOException ie) {
+
+					Log.error("Error deleting a spooled file: " + ie);
+				}
+			}
+		}
+	}
+
+	static private class Upload {
+
+		final String target;
+		final byte[] name;
+		final long size;
+		long received;
+
+		// Null when the content is thrown away, e.g. after a write to the spool failed
+		Spool spool;
+
+		Upload(String target, byte[] name, long size, Spool spool) {
+
+			this.target = target;
+			this.name	= name;
+			this.size	= size;
+			this.spool	= spool;
+		}
+	}
+
+	static private class Download {
+
+		final Spool spool;
+		final ByteBuffer header;
+		long position;
+
+		Download(Spool spool, ByteBuffer header) {
+
+			this.spool	= spool;
+			this.header = header;
+		}
+	}
+
+	/**
+	 * Starts receiving a file, after its /send line or SEND frame. The content is received even
+	 * if it can't be delivered, since it's on its way anyway; ERROR comes after it.
+	 *
+	 * @param client - the sending client
+	 * @param target - the recipient's nickname, or the sender's room
+	 * @param name	 - the file's name, as the recipients get it
+	 * @param size	 - the content's size, -1 if it wasn't a number
+	 */
+	static void start(ChatServer.Client client, String target, byte[] name, long size) throws IOException {
+
+		if(size < 0) {
+
+			ChatServer.sendStatusMessage(client, ChatServer.ERROR);		// no size, so the content can't be told apart
+			return;
+		}
+
+		if(size > max_size) {
+
+			ChatServer.close(client, "File too large from");
+			return;
+		}
+
+		Spool spool = null;
+
+		if(client.state != ChatServer.State.INIT) {
+
+			try {
+
+				spool = new Spool(size);
+
+			} catch(IOException ie) {
+
+				Log.error("Error spooling a file: " + ie);
+			}
+		}
+
+		if(client.files == null) {
+
+			client.files = new FileTransfer();
+		}
+
+		client.files.upload = new Upload(target, name, size, spool);
+
+		if(size == 0) {
+
+			complete(client);
+		}
+	}
+
+	/**
+	 * Takes the part of an upload's content that was read with the lines before it.
+	 *
+	 * @param client - the sending client, with an upload
+	 * @param data	 - the bytes read
+	 * @param start	 - where the content starts
+	 * @param limit	 - where the bytes read end
+	 * @return where the bytes following the content start, or limit
+	 */
+	static int take(ChatServer.Client client, byte[] data, int start, int limit) throws IOException {
+
+		Upload upload = client.files.upload;
+		int n		  = (int) Math.min(limit - start, upload.size - upload.received);
+
+		if(upload.spool != null) {
+
+			ByteBuffer bb = ByteBuffer.wrap(data, start, n);
+
+			try {
+
+				while(bb.hasRemaining()) {
+
+					upload.spool.channel.write(bb, upload.received + bb.position() - start);
+				}
+
+			} catch(IOException ie) {
+
+				Log.error("Error spooling a file: " + ie);
+				upload.spool.release();
+				upload.spool = null;
+			}
+		}
+
+		if(ChatServer.capture != null) {
+
+			ChatServer.capture.data(client.id, data, start, n);
+		}
+
+		received(client, n);
+
+		return start + n;
+	}
+
+	/**
+	 * Reads more of an upload's content, up to CHUNK bytes, straight from the socket to the
+	 * spool. Without a spool, or while capturing, it's read into 'buffer' instead.
+	 *
+	 * @param client - the sending client, with an upload
+	 * @param buffer - a heap buffer the calling thread reads into
+	 * @return false if the client closed the connection
+	 */
+	static boolean receive(ChatServer.Client client, ByteBuffer buffer) throws IOException {
+
+		Upload upload = client.files.upload;
+		long left	  = upload.size - upload.received;
+		long n		  = 0;
+
+		if(upload.spool != null && ChatServer.capture == null) {
+
+			n = upload.spool.channel.transferFrom(client.channel, upload.received, Math.min(left, CHUNK));
+		}
+
+		if(n > 0) {
+
+			ChatServer.metrics.bytes_read.add(n);
+			received(client, n);
+
+		} else {
+
+			// Nothing was transferred, maybe because the connection is closed: a read tells
+			buffer.clear().limit((int) Math.min(left, buffer.capacity()));
+
+			int r = client.channel.read(buffer);
+
+			if(r < 0) {
+				return false;
+			}
+
+			ChatServer.metrics.bytes_read.add(r);
+			take(client, buffer.array(), 0, r);
+		}
+
+		if(client.loop != null) {
+
+			client.last_active = client.loop.now;
+			client.pinged	   = false;
+		}
+
+		return true;
+	}
+
+	// Counts content received, and delivers the file once it's all in
+	static private void received(ChatServer.Client client, long n) throws IOException {
+
+		Upload upload = client.files.upload;
+
+		upload.received += n;
+		ChatServer.metrics.file_bytes_received.add(n);
+
+		if(upload.received == upload.size) {
+
+			complete(client);
+		}
+	}
+
+	// Hands a complete upload to its recipients, and answers the sender
+	static private void complete(ChatServer.Client client) throws IOException {
+
+		Upload upload	 = client.files.upload;
+		Spool spool		 = upload.spool;
+		client.files.upload = null;
+
+		idle(client);
+
+		if(spool == null) {
+
+			ChatServer.sendStatusMessage(client, ChatServer.ERROR);		// nickname not defined yet, or no spool
+			return;
+		}
+
+		byte[] size	  = Long.toString(upload.size).getBytes(StandardCharsets.US_ASCII);
+		byte[] text	  = header(client.nick_bytes, upload.name, size);
+		byte[] binary = BinaryProtocol.encode(false, BinaryProtocol.FILE, client.nick_bytes, upload.name, size).array();
+		boolean sent  = false;
+
+		if(client.state == ChatServer.State.INSIDE && client.room.name.equals(upload.target)) {
+
+			toRoom(client.room, client, spool, text, binary);
+			sent = true;
+
+		} else {
+
+			ChatServer.Client recipient = ChatServer.holder(upload.target);
+
+			if(recipient != null && recipient != client) {
+
+				toClient(recipient, spool, text, binary);
+				sent = true;
+			}
+		}
+
+		spool.release();
+
+		ChatServer.sendStatusMessage(client, sent ? ChatServer.OK : ChatServer.ERROR);	// no such recipient
+	}
+
+	// 'FILE sender name size\n'
+	static private byte[] header(byte[] sender, byte[] name, byte[] size) {
+
+		ByteBuffer bb = ByteBuffer.allocate(FILE_PREFIX.length + sender.length + name.length + size.length + 3);
+
+		bb.put(FILE_PREFIX).put(sender).put((byte) ' ').put(name).put((byte) ' ').put(size).put((byte) '\n');
+
+		return bb.array();
+	}
+
+	// Sends a file to the other members of a room, each on its own thread
+	static private void toRoom(ChatServer.Room room, ChatServer.Client sender, Spool spool, byte[] text, byte[] binary) {
+
+		if(ChatServer.loops == null) {
+
+			ArrayList<ChatServer.Client> recipients = new ArrayList<>();
+
+			synchronized(room.members[0]) {
+
+				for(int i = 0; i < room.members[0].size; i++) {
+
+					recipients.add(room.members[0].slots[i]);
+				}
+			}
+
+			// Not under the room's lock, which would keep it for the whole of the files
+			recipients.remove(sender);
+			sendBlocking(recipients, spool, text, binary);
+
+			return;
+		}
+
+		for(EventLoop loop : ChatServer.loops) {
+
+			ChatServer.Members members = room.members[loop.id];
+
+			// Kept until the loop got to it
+			spool.retain();
+
+			Runnable task = () -> {
+
+				for(int i = 0; i < members.size; i++) {
+
+					ChatServer.Client member = members.slots[i];
+
+					if(member != sender) {
+
+						spool.retain();
+						queue(member, new Download(spool, ByteBuffer.wrap(member.binary ? binary : text)));
+					}
+				}
+
+				spool.release();
+			};
+
+			if(loop.inEventLoop()) {
+
+				task.run();
+
+			} else {
+
+				loop.execute(task);
+			}
+		}
+	}
+
+	// Sends a file to one client, on its own loop, or right away with ThreadEngine
+	static private void toClient(ChatServer.Client recipient, Spool spool, byte[] text, byte[] binary) {
+
+		if(recipient.loop == null) {
+
+			sendBlocking(Collections.singletonList(recipient), spool, text, binary);
+			return;
+		}
+
+		Download download = new Download(spool, ByteBuffer.wrap(recipient.binary ? binary : text));
+
+		spool.retain();
+
+		if(recipient.loop.inEventLoop()) {
+
+			queue(recipient, download);
+
+		} else {
+
+			recipient.loop.execute(() -> queue(recipient, download));
+		}
+	}
+
+	// Event loop: queues a file's header for a client it owns; the content follows it, see flush()
+	static private void queue(ChatServer.Client client, Download download) {
+
+		if(client.compression != null) {
+
+			download.spool.release();
+			return;
+		}
+
+		if(client.files == null) {
+
+			client.files = new FileTransfer();
+		}
+
+		// First, since a full queue is flushed right away
+		client.files.queued.add(download);
+
+		try {
+
+			ChatServer.write(client, download.header);
+
+		} catch(IOException ie) { }
+
+		// Released already: with the rest of the client's output when it was disconnected as too
+		// slow, or once sent by the flush the write started
+		if(client.files == null) {
+			return;
+		}
+
+		// Not queued: the connection is gone
+		if(download.header.position() == 0 && client.outbound.peekLast() != download.header) {
+
+			client.files.queued.removeLastOccurrence(download);
+			download.spool.release();
+			idle(client);
+		}
+	}
+
+	/*
+	 * ThreadEngine: writes a file to its recipients, a CHUNK to each in turn. A recipient being
+	 * sent another file is started once that one is done; meanwhile the others go on, and it's
+	 * only waited for when nothing else is left, so two senders never wait for each other.
+	 */
+	static private void sendBlocking(List<ChatServer.Client> recipients, Spool spool, byte[] text, byte[] binary) {
+
+		ArrayDeque<ChatServer.Client> waiting = new ArrayDeque<>(recipients);
+		ArrayList<ChatServer.Client> clients  = new ArrayList<>(recipients.size());
+		ArrayList<Download> downloads		  = new ArrayList<>(recipients.size());
+
+		while(!waiting.isEmpty() || !clients.isEmpty()) {
+
+			for(int n = waiting.size(); n > 0; n--) {
+
+				ChatServer.Client client = waiting.poll();
+				Download download		 = new Download(spool, ByteBuffer.wrap(client.binary ? binary : text));
+
+				if(startBlocking(client, download, clients.isEmpty())) {
+
+					spool.retain();
+					clients.add(client);
+					downloads.add(download);
+
+				} else {
+
+					waiting.add(client);
+				}
+			}
+
+			for(int i = clients.size() - 1; i >= 0; i--) {
+
+				if(chunkBlocking(clients.get(i), downloads.get(i))) {
+
+					clients.remove(i);
+					downloads.remove(i);
+				}
+			}
+		}
+	}
+
+	/*
+	 * ThreadEngine: writes a file's header to a client, unless it's being sent another file and
+	 * wait is false. Nothing more is sent if it asked for compression or the write failed.
+	 */
+	static private boolean startBlocking(ChatServer.Client client, Download download, boolean wait) {
+
+		client.write_lock.lock();
+
+		try {
+
+			if(client.deferred != null && !wait) {
+				return false;
+			}
+
+			while(client.deferred != null) {
+
+				client.file_done.awaitUninterruptibly();
+			}
+
+			client.deferred = new ArrayDeque<>(1);
+
+			// Under the lock /compress takes to switch
+			if(client.compression != null) {
+
+				download.position = download.spool.size;
+				return true;
+			}
+
+			while(download.header.hasRemaining()) {
+
+				ChatServer.metrics.bytes_written.add(client.channel.write(download.header));
+			}
+
+		} catch(IOException ie) {
+
+			// Left for the client's own thread to notice
+			download.position = download.spool.size;
+
+		} finally {
+
+			client.write_lock.unlock();
+		}
+
+		return true;
+	}
+
+	// ThreadEngine: writes the next CHUNK bytes at most of a file; true once it's done
+	static private boolean chunkBlocking(ChatServer.Client client, Download download) {
+
+		client.write_lock.lock();
+
+		try {
+
+			try {
+
+				sent(download, download.spool.channel.transferTo(download.position, Math.min(download.spool.size - download.position, CHUNK), client.channel));
+
+			} catch(IOException ie) {
+
+				// Left for the client's own thread to notice
+				download.position = download.spool.size;
+			}
+
+			if(download.position < download.spool.size) {
+				return false;
+			}
+
+			ChatServer.fileDone(client);
+
+		} finally {
+
+			client.write_lock.unlock();
+		}
+
+		download.spool.release();
+
+		return true;
+	}
+
+	/**
+	 * Tells whether a buffer about to be written is a file's header, after which the content
+	 * must go before any other output.
+	 *
+	 * @param client - the client being flushed
+	 * @param bb	 - a buffer queued for it
+	 */
+	static boolean isHeader(ChatServer.Client client, ByteBuffer bb) {
+
+		return client.files != null && !client.files.queued.isEmpty() && client.files.queued.peek().header == bb;
+	}
+
+	/**
+	 * Called by flush() once a file's header is out: its content goes next.
+	 *
+	 * @param client - the client being flushed
+	 */
+	static void headerSent(ChatServer.Client client) {
+
+		client.files.sending = client.files.queued.poll();
+	}
+
+	/**
+	 * Event loop: writes the next CHUNK bytes at most of the file being sent to a client.
+	 *
+	 * @param client - the client being flushed, with a file being sent
+	 * @return true once the whole file is sent
+	 */
+	static boolean send(ChatServer.Client client) throws IOException {
+
+		Download download = client.files.sending;
+		long left		  = download.spool.size - download.position;
+
+		if(left > 0) {
+
+			sent(download, download.spool.channel.transferTo(download.position, Math.min(left, CHUNK), client.channel));
+		}
+
+		if(download.position < download.spool.size) {
+			return false;
+		}
+
+		client.files.sending = null;
+		download.spool.release();
+		idle(client);
+
+		return true;
+	}
+
+	static private void sent(Download download, long n) {
+
+		download.position += n;
+		ChatServer.metrics.bytes_written.add(n);
+		ChatServer.metrics.file_bytes_sent.add(n);
+	}
+
+	/**
+	 * Drops every transfer of a client being closed, or dropped as too slow.
+	 *
+	 * @param client - the client
+	 */
+	static void discard(ChatServer.Client client) {
+
+		FileTransfer files = client.files;
+
+		if(files == null) {
+			return;
+		}
+
+		if(files.upload != null && files.upload.spool != null) {
+
+			files.upload.spool.release();
+		}
+
+		if(files.sending != null) {
+
+			files.sending.spool.release();
+		}
+
+		for(Download download : files.queued) {
+
+			download.spool.release();
+		}
+
+		client.files = null;
+	}
+
+	// Frees a client's transfers once there are none left
+	static private void idle(ChatServer.Client client) {
+
+		FileTransfer files = client.files;
+
+		if(files != null && files.upload == null && files.sending == null && files.queued.isEmpty()) {
+
+			client.files = null;
+		}
+	}
+
+	/**
+	 * Parses a file size, in decimal.
+	 *
+	 * @return the size, or -1 if it's not a number
+	 */
+	static long parseSize(byte[] b, int from, int to) {
+
+		if(from == to || to - from > 18) {
+			return -1;
+		}
+
+		long size = 0;
+
+		for(int i = from; i < to; i++) {
+
+			if(b[i] < '0' || b[i] > '9') {
+				return -1;
+			}
+
+			size = size * 10 + (b[i] - '0');
+		}
+
+		return size;
+	}
+}
@@ -0,0 +1,530 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Persistent room history: an append-only log per room, made of fixed size segment files, of
+ * which only the one being written is memory-mapped. Each record is the room message as a
+ * binary protocol MESSAGE frame, so it's stored exactly as binary clients receive it. Next to
+ * each segment, an index maps the record number to the offset where that record ends.
+ *
+ *     <directory>/<room name in hex>/<first record number>.log
+ *     <directory>/<room name in hex>/<first record number>.idx
+ *
+ * Event loops never touch the files for an append: they queue the record, and the "chat-history"
+ * thread copies it into the mapped segment. When the queue is full the record is dropped and
+ * counted, like a log line. Reads run on the event loops, straight from the mapped memory for the
+ * segment being written, and from the files for the older ones, which only a /history asking for
+ * more than the newest segment holds needs. The writer publishes a record by bumping its
+ * segment's volatile count once the record and its index entry are written, so readers never see
+ * a half-written record.
+ *
+ * A room thus costs two mappings, whatever the number of its segments: a server with thousands
+ * of rooms stays far from vm.max_map_count. A full segment is unmapped by dropping its buffers,
+ * which the JVM does once they're collected; older segments are deleted long after that.
+ *
+ * Index entries are written after their record, and an unused entry is zero. On restart, a
+ * segment's record count is found with a binary search of its index, without reading the data.
+ */
+class History {
+
+	// Size of a segment's data file; a full segment is closed and a new one started
+	static final int SEGMENT_BYTES = 4 << 20;
+
+	// Smallest record: a frame header and two length prefixes, with a 1 byte nick
+	static private final int MIN_RECORD	   = BinaryProtocol.HEADER + 2 + 1 + 2;
+	static private final int INDEX_ENTRIES = SEGMENT_BYTES / MIN_RECORD;
+
+	// Older segments are deleted once a room has more than this many
+	static final int MAX_SEGMENTS = 4;
+
+	// Most records sent in reply to one /history
+	static final int MAX_REPLAY = 500;
+
+	// Same as Constants.MESSAGE_PREFIX, which javac won't let other files use
+	static private final byte[] MESSAGE_PREFIX = "MESSAGE ".getBytes(StandardCharsets.US_ASCII);
+
+	private final Path directory;
+
+	// Only rooms that already have a log; created by the writer thread on their first append
+	private final ConcurrentHashMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+
+	private final ArrayBlockingQueue<Append> queue = new ArrayBlockingQueue<>(8192);
+
+	static private class Append {
+
+		final String room;
+		final ByteBuffer record;
+
+		Append(String room, ByteBuffer record) {
+
+			this.room	= room;
+			this.record = record;
+		}
+	}
+
+	/*
+	 * One segment of a room's log. Only the writer thread appends, to the last segment, the only
+	 * one mapped; the mapped buffers are never moved, so readers use absolute reads on them.
+	 */
+	static private class Segment {
+
+		final long first;
+		final Path data_path, index_path;
+
+		// Null once the segment is full, or when reopened full
+		volatile MappedByteBuffer data, index;
+
+		// Records published to readers
+		volatile int count;
+
+		// Where the next record goes; writer thread only
+		int position;
+
+		Segment(Path directory, long first, boolean mapped) throws IOException {
+
+			this.first		= first;
+			this.data_path	= directory.resolve(String.format("%020d.log", first));
+			this.index_path = directory.resolve(String.format("%020d.idx", first));
+
+			try(FileChannel fc = FileChannel.open(index_path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+				// The last entry in use is followed by zeros only
+				int low = 0, high = INDEX_ENTRIES;
+
+				while(low < high) {
+
+					int middle = (low + high) >>> 1;
+
+					if(readInt(fc, middle * 4) != 0) {
+
+						low = middle + 1;
+
+					} else {
+
+						high = middle;
+					}
+				}
+
+				this.count	  = low;
+				this.position = low == 0 ? 0 : readInt(fc, (low - 1) * 4);
+
+				// The mapping outlives the channel, so no descriptor is kept per segment
+				if(mapped) {
+
+					this.index = fc.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_ENTRIES * 4);
+					this.data  = map(data_path, SEGMENT_BYTES);
+				}
+			}
+		}
+
+		// Writer thread: the segment is full, and won't be read from memory anymore
+		void unmap() {
+
+			data  = null;
+			index = null;
+		}
+
+		/**
+		 * Records [from, to) of the segment, in a buffer of their own: a slice of the mapping,
+		 * or read from the file once unmapped.
+		 */
+		ByteBuffer records(int from, int to) throws IOException {
+
+			MappedByteBuffer data = this.data, index = this.index;
+
+			// Still mapped, and kept so by the references taken above
+			if(data != null && index != null) {
+
+				ByteBuffer records = data.duplicate();
+				records.position(start(index, from)).limit(start(index, to));
+
+				return records.slice();
+			}
+
+			try(FileChannel fc = FileChannel.open(index_path, StandardOpenOption.READ)) {
+
+				int start = from == 0 ? 0 : readInt(fc, (from - 1) * 4);
+				int end	  = to == 0 ? 0 : readInt(fc, (to - 1) * 4);
+
+				return read(data_path, start, end - start);
+			}
+		}
+
+		// Where record i starts in the data file
+		static private int start(MappedByteBuffer index, int i) {
+
+			return i == 0 ? 0 : index.getInt((i - 1) * 4);
+		}
+
+		void delete() {
+
+			try {
+
+				Files.deleteIfExists(data_path);
+				Files.deleteIfExists(index_path);
+
+			} catch(IOException ie) {
+
+				Log.error("Could not delete history segment " + data_path + ": " + ie);
+			}
+		}
+
+		// An int of the file, 0 past its end like an unused index entry
+		static private int readInt(FileChannel fc, long position) throws IOException {
+
+			ByteBuffer bb = ByteBuffer.allocate(4);
+
+			while(bb.hasRemaining()) {
+
+				if(fc.read(bb, position + bb.position()) < 0) {
+					return 0;
+				}
+			}
+
+			return bb.getInt(0);
+		}
+
+		static private ByteBuffer read(Path path, int position, int length) throws IOException {
+
+			ByteBuffer bb = ByteBuffer.allocate(length);
+
+			try(FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+
+				while(bb.hasRemaining()) {
+
+					if(fc.read(bb, position + bb.position()) < 0) {
+
+						throw new IOException("Truncated history segment " + path);
+					}
+				}
+			}
+
+			bb.flip();
+
+			return bb;
+		}
+
+		static private MappedByteBuffer map(Path path, int size) throws IOException {
+
+			try(FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+				return fc.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+	}
+
+	/*
+	 * A room's segments, oldest first. The writer replaces the array on every change, so readers
+	 * just take the current one.
+	 */
+	static private class RoomLog {
+
+		final Path directory;
+		volatile Segment[] segments;
+
+		RoomLog(Path directory, Segment[] segments) {
+
+			this.directory = directory;
+			this.segments  = segments;
+		}
+	}
+
+	/**
+	 * Opens the history kept in a directory, reopening the logs of the rooms already in it, and
+	 * starts the writer thread.
+	 *
+	 * @param directory - where the room logs are kept; created if needed
+	 */
+	History(Path directory) throws IOException {
+
+		this.directory = Files.createDirectories(directory);
+
+		try(DirectoryStream<Path> rooms = Files.newDirectoryStream(directory)) {
+
+			for(Path room_directory : rooms) {
+
+				String room = decodeName(room_directory.getFileName().toString());
+
+				if(room != null && Files.isDirectory(room_directory)) {
+
+					logs.put(room, open(room_directory));
+				}
+			}
+		}
+
+		Thread writer = new Thread(this::drain, "chat-history");
+		writer.setDaemon(true);
+		writer.start();
+
+		Log.info("History in " + directory + " with " + logs.size() + " room(s)");
+	}
+
+	/**
+	 * Queues a room message to be appended to the room's log. Never blocks.
+	 *
+	 * @param room	 - the room's name
+	 * @param record - the message as a binary MESSAGE frame; not modified
+	 */
+	void append(String room, ByteBuffer record) {
+
+		if(!queue.offer(new Append(room, record))) {
+
+			ChatServer.metrics.history_dropped.increment();
+		}
+	}
+
+	/**
+	 * The most recent messages of a room, oldest first, in the given wire format. Binary
+	 * clients get slices of the mapped segments, so nothing is copied on the way to the
+	 * socket; text clients get the messages converted to MESSAGE lines.
+	 *
+	 * @param room	 - the room's name
+	 * @param n		 - how many messages, at most
+	 * @param binary - whether the reader speaks the binary protocol
+	 */
+	ArrayList<ByteBuffer> recent(String room, int n, boolean binary) {
+
+		ArrayList<ByteBuffer> out = new ArrayList<>();
+		RoomLog log				  = logs.get(room);
+
+		if(log == null) {
+
+			return out;
+		}
+
+		Segment[] segments = log.segments;
+		int left		   = Math.min(n, MAX_REPLAY);
+
+		// Walk back from the newest segment until there are enough records
+		for(int s = segments.length - 1; s >= 0 && left > 0; s--) {
+
+			Segment segment = segments[s];
+			int count		= segment.count;
+			int from		= Math.max(0, count - left);
+
+			left -= count - from;
+
+			if(from == count) {
+				continue;
+			}
+
+			ByteBuffer records;
+
+			try {
+
+				records = segment.records(from, count);
+
+			} catch(IOException ie) {
+
+				// Deleted by the writer meanwhile, or unreadable: what's newer is still sent
+				Log.error("Could not read history segment " + segment.data_path + ": " + ie);
+				break;
+			}
+
+			out.add(binary ? records.asReadOnlyBuffer() : toText(records));
+		}
+
+		Collections.reverse(out);
+
+		return out;
+	}
+
+	/**
+	 * Converts consecutive MESSAGE frames into MESSAGE lines.
+	 *
+	 * @param records - the frames, from position to limit
+	 */
+	static ByteBuffer toText(ByteBuffer records) {
+
+		ByteBuffer text = ByteBuffer.allocate(records.remaining() + records.remaining() / MIN_RECORD * 3);
+
+		while(records.hasRemaining()) {
+
+			records.position(records.position() + BinaryProtocol.HEADER);
+
+			int nick_length = records.getShort() & 0xFFFF;
+			ByteBuffer nick = records.slice().limit(nick_length);
+			records.position(records.position() + nick_length);
+
+			int body_length = records.getShort() & 0xFFFF;
+			ByteBuffer body = records.slice().limit(body_length);
+			records.position(records.position() + body_length);
+
+			text.put(MESSAGE_PREFIX).put(nick).put((byte) ' ').put(body).put((byte) '\n');
+		}
+
+		text.flip();
+
+		return text;
+	}
+
+	private void drain() {
+
+		while(true) {
+
+			Append append;
+
+			try {
+
+				append = queue.take();
+
+			} catch(InterruptedException ie) {
+
+				return;
+			}
+
+			try {
+
+				write(append.room, append.record.duplicate());
+
+			} catch(IOException ie) {
+
+				Log.error("Could not append to the history of " + append.room + ": " + ie);
+			}
+		}
+	}
+
+	// Writer thread only
+	private void write(String room, ByteBuffer record) throws IOException {
+
+		RoomLog log = logs.get(room);
+
+		if(log == null) {
+
+			log = open(directory.resolve(encodeName(room)));
+			logs.put(room, log);
+		}
+
+		Segment[] segments = log.segments;
+		Segment segment	   = segments[segments.length - 1];
+		int length		   = record.remaining();
+
+		if(segment.position + length > SEGMENT_BYTES || segment.count == INDEX_ENTRIES) {
+
+			segment.unmap();
+
+			segment	 = new Segment(log.directory, segment.first + segment.count, true);
+			segments = roll(segments, segment);
+			log.segments = segments;
+		}
+
+		ByteBuffer data = segment.data.duplicate();
+		data.position(segment.position);
+		data.put(record);
+
+		segment.position += length;
+		segment.index.putInt(segment.count * 4, segment.position);
+
+		// Publishes the record
+		segment.count = segment.count + 1;
+		ChatServer.metrics.history_appended.increment();
+	}
+
+	// The segments with a new last one, without the oldest ones past MAX_SEGMENTS
+	static private Segment[] roll(Segment[] segments, Segment last) {
+
+		Segment[] rolled = Arrays.copyOf(segments, segments.length + 1);
+		rolled[segments.length] = last;
+
+		if(rolled.length <= MAX_SEGMENTS) {
+
+			return rolled;
+		}
+
+		// Unmapped long ago; a reader still holding the old array just misses them
+		for(int i = 0; i < rolled.length - MAX_SEGMENTS; i++) {
+
+			rolled[i].delete();
+		}
+
+		return Arrays.copyOfRange(rolled, rolled.length - MAX_SEGMENTS, rolled.length);
+	}
+
+	static private RoomLog open(Path room_directory) throws IOException {
+
+		Files.createDirectories(room_directory);
+
+		ArrayList<Long> firsts = new ArrayList<>();
+
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(room_directory, "*.log")) {
+
+			for(Path file : files) {
+
+				String name = file.getFileName().toString();
+
+				try {
+
+					firsts.add(Long.parseLong(name.substring(0, name.length() - 4)));
+
+				} catch(NumberFormatException nfe) { }
+			}
+		}
+
+		if(firsts.isEmpty()) {
+
+			firsts.add(0L);
+		}
+
+		firsts.sort(null);
+
+		Segment[] segments = new Segment[firsts.size()];
+
+		for(int i = 0; i < segments.length; i++) {
+
+			// Only the last one is written to
+			segments[i] = new Segment(room_directory, firsts.get(i), i == segments.length - 1);
+		}
+
+		return new RoomLog(room_directory, segments);
+	}
+
+	// Room names may hold any character but blanks, so directories are named after their bytes
+	static private String encodeName(String room) {
+
+		StringBuilder sb = new StringBuilder();
+
+		for(byte b : room.getBytes(StandardCharsets.UTF_8)) {
+
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return sb.toString();
+	}
+
+	static private String decodeName(String hex) {
+
+		if(hex.isEmpty() || hex.length() % 2 != 0) {
+
+			return null;
+		}
+
+		byte[] bytes = new byte[hex.length() / 2];
+
+		for(int i = 0; i < bytes.length; i++) {
+
+			int high = Character.digit(hex.charAt(2 * i), 16);
+			int low	 = Character.digit(hex.charAt(2 * i + 1), 16);
+
+			if(high < 0 || low < 0) {
+
+				return null;
+			}
+
+			bytes[i] = (byte) (high << 4 | low);
+		}
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,686 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/*
+ * Headless load generator for ChatServer. Opens many non-blocking connections from a single
+ * selector thread, speaks the text protocol, and reports throughput and latency percentiles.
+ *
+ * Every message carries its send time (System.nanoTime()), so the delivery latency of each
+ * MESSAGE or PRIVATE line is measured when it comes back on any of the generator's connections.
+ * The latency of commands (/join, /leave, /priv) is measured until their OK or ERROR.
+ *
+ * Usage: java LoadGenerator host port [--scenario chat|churn|priv] [--clients N] [--rooms N]
+ *                                     [--rate msgs/s per client] [--duration s] [--warmup s]
+ *                                     [--size message bytes] [--binary] [--compress]
+ *
+ * With --binary, the connections speak BinaryProtocol instead of text. With --compress, they ask
+ * for compressed output, see Compression; compare the bytes received per message with and without.
+ */
+public class LoadGenerator {
+
+	/*
+	 * Scenarios.
+	 */
+	static final String CHAT  = "chat";		// everybody talks in its room
+	static final String CHURN = "churn";	// talk, and keep switching rooms
+	static final String PRIV  = "priv";		// everybody sends private messages to random users
+
+	// Configuration, from the command line
+	static private String host;
+	static private int port;
+	static private String scenario = CHAT;
+	static private int n_clients   = 1000;
+	static private int n_rooms	   = 10;
+	static private double rate	   = 1.0;
+	static private int duration	   = 30;
+	static private int warmup	   = 5;
+	static private int size		   = 64;
+	static private boolean binary  = false;
+	static private boolean compress = false;
+
+	static private final Random random = new Random(42);
+
+	// Measurements, only recorded once the warm-up is over
+	static private final Recorder delivery = new Recorder();
+	static private final Recorder acks	   = new Recorder();
+	static private long sent		= 0;
+	static private long received	= 0;
+	static private long errors		= 0;
+	static private long bytes_received = 0;
+	static private boolean measuring = false;
+
+	/*
+	 * One connection to the server.
+	 */
+	static private class Session {
+
+		final int id;
+		final SocketChannel channel;
+		SelectionKey key;
+
+		int room	  = -1;
+		boolean ready = false;		// has its nickname, and its room when it needs one
+
+		// Send times of the commands waiting for their OK or ERROR, in order
+		final ArrayDeque<Long> pending = new ArrayDeque<>();
+		final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+		ByteBuffer input = ByteBuffer.allocate(65536);
+
+		// Once the server compresses: inflates what it sends, and the blocks not inflated yet
+		Compression.Reader reader;
+		ByteBuffer blocks;
+
+		Session(int id, SocketChannel channel) {
+
+			this.id 	 = id;
+			this.channel = channel;
+		}
+	}
+
+	/*
+	 * Latency samples, in nanoseconds. Kept whole and sorted once at the end, which is exact and
+	 * cheap enough for a test tool. Also used by Replay.
+	 */
+	static class Recorder {
+
+		private long[] samples = new long[1 << 16];
+		private int count	   = 0;
+
+		void record(long nanos) {
+
+			if(count == samples.length) {
+
+				samples = Arrays.copyOf(samples, count * 2);
+			}
+
+			samples[count++] = nanos;
+		}
+
+		void report(String name) {
+
+			if(count == 0) {
+
+				System.out.println(name + ": no samples");
+				return;
+			}
+
+			Arrays.sort(samples, 0, count);
+
+			System.out.printf("%s: %d samples, p50 %s, p99 %s, p99.9 %s, max %s%n", name, count,
+							  micros(percentile(0.50)), micros(percentile(0.99)),
+							  micros(percentile(0.999)), micros(samples[count - 1]));
+		}
+
+		private long percentile(double q) {
+
+			return samples[Math.max(0, (int) Math.ceil(q * count) - 1)];
+		}
+
+		private static String micros(long nanos) {
+
+			return String.format("%.1f us", nanos / 1000.0);
+		}
+	}
+
+	static public void main(String args[]) throws Exception {
+
+		if(args.length < 2) {
+
+			System.err.println("Usage: java LoadGenerator host port [--scenario chat|churn|priv] [--clients N] [--rooms N]"
+							 + " [--rate msgs/s per client] [--duration s] [--warmup s] [--size message bytes] [--binary] [--compress]");
+			System.exit(1);
+		}
+
+		host = args[0];
+		port = Integer.parseInt(args[1]);
+
+		for(int i = 2; i < args.length; i += 2) {
+
+			if(args[i].equals("--binary") || args[i].equals("--compress")) {
+
+				binary	 |= args[i].equals("--binary");
+				compress |= args[i].equals("--compress");
+				i--;
+				continue;
+			}
+
+			if(i + 1 == args.length) {
+
+				System.err.println("Missing value for " + args[i]);
+				System.exit(1);
+			}
+
+			switch(args[i]) {
+
+				case "--scenario": scenario  = args[i + 1]; 					 break;
+				case "--clients":  n_clients = Integer.parseInt(args[i + 1]);	 break;
+				case "--rooms":	   n_rooms	 = Integer.parseInt(args[i + 1]);	 break;
+				case "--rate":	   rate		 = Double.parseDouble(args[i + 1]);	 break;
+				case "--duration": duration	 = Integer.parseInt(args[i + 1]);	 break;
+				case "--warmup":   warmup	 = Integer.parseInt(args[i + 1]);	 break;
+				case "--size":	   size		 = Integer.parseInt(args[i + 1]);	 break;
+
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(1);
+			}
+		}
+
+		run();
+	}
+
+	static private void run() throws IOException {
+
+		Selector selector = Selector.open();
+		ArrayList<Session> sessions = new ArrayList<>(n_clients);
+
+		System.out.printf("%s scenario (%s%s): %d clients, %d rooms, %.1f msgs/s per client, %d s (+%d s warm-up)%n",
+						  scenario, binary ? "binary" : "text", compress ? ", compressed" : "", n_clients, n_rooms, rate, duration, warmup);
+
+		for(int i = 0; i < n_clients; i++) {
+
+			SocketChannel sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			sc.connect(new InetSocketAddress(host, port));
+
+			Session session = new Session(i, sc);
+			session.key = sc.register(selector, SelectionKey.OP_CONNECT, session);
+			sessions.add(session);
+		}
+
+		long start			= System.nanoTime();
+		long measure_start	= start + warmup * 1_000_000_000L;
+		long end			= measure_start + duration * 1_000_000_000L;
+		long next_report	= start + 1_000_000_000L;
+		double credit		= 0;		// messages due but not sent yet
+		long last_tick		= start;
+		int cursor			= 0;
+		long last_sent		= 0, last_received = 0;
+
+		while(true) {
+
+			selector.select(1);
+
+			Iterator<SelectionKey> key_iterator = selector.selectedKeys().iterator();
+
+			while(key_iterator.hasNext()) {
+
+				SelectionKey key = key_iterator.next();
+				key_iterator.remove();
+
+				Session session = (Session) key.attachment();
+
+				try {
+
+					if(key.isConnectable()) {
+
+						connected(session);
+
+					} else {
+
+						if(key.isWritable()) {
+
+							flush(session);
+						}
+
+						if(key.isReadable()) {
+
+							read(session);
+						}
+					}
+
+				} catch(IOException ie) {
+
+					System.err.println("Session " + session.id + ": " + ie);
+					key.cancel();
+					session.channel.close();
+				}
+			}
+
+			long now = System.nanoTime();
+
+			if(!measuring && now >= measure_start) {
+
+				measuring = true;
+				last_sent = last_received = 0;
+				bytes_received = 0;
+			}
+
+			if(now >= end) {
+				break;
+			}
+
+			// Spread the total send rate over the ready sessions, round-robin
+			credit   += (now - last_tick) / 1e9 * rate * n_clients;
+			last_tick = now;
+
+			for(int tries = 0; credit >= 1 && tries < n_clients; tries++) {
+
+				Session session = sessions.get(cursor);
+				cursor = (cursor + 1) % n_clients;
+
+				if(session.ready && session.channel.isOpen()) {
+
+					step(session, now);
+					credit--;
+				}
+			}
+
+			// Don't let a backlog build up while sessions are still connecting
+			credit = Math.min(credit, n_clients);
+
+			if(now >= next_report) {
+
+				System.out.printf("sent %d/s, delivered %d/s%n", sent - last_sent, received - last_received);
+				last_sent	  = sent;
+				last_received = received;
+				next_report  += 1_000_000_000L;
+			}
+		}
+
+		System.out.println();
+		System.out.printf("throughput: sent %.0f msgs/s, delivered %.0f msgs/s, %d errors%n",
+						  sent / (double) duration, received / (double) duration, errors);
+		System.out.printf("received %d bytes, %.1f per delivered message%n",
+						  bytes_received, received == 0 ? 0.0 : bytes_received / (double) received);
+		delivery.report("delivery latency");
+		acks.report("command latency");
+
+		for(Session session : sessions) {
+
+			session.channel.close();
+		}
+	}
+
+	static private void connected(Session session) throws IOException {
+
+		session.channel.finishConnect();
+		session.key.interestOps(SelectionKey.OP_READ);
+
+		if(binary) {
+
+			enqueue(session, ByteBuffer.wrap(new byte[] { BinaryProtocol.MAGIC }));
+		}
+
+		// Answered with COMPRESS rather than OK, so it's not pending
+		if(compress) {
+
+			send(session, "/compress");
+		}
+
+		// Pipelined; the session is ready once both are acknowledged
+		session.pending.add(-1L);
+		send(session, "/nick lg" + session.id);
+
+		if(!scenario.equals(PRIV)) {
+
+			session.room = session.id % n_rooms;
+			session.pending.add(-1L);
+			send(session, "/join room" + session.room);
+		}
+	}
+
+	/**
+	 * Sends the session's next message according to the scenario.
+	 *
+	 * @param session - the sending session
+	 * @param now	  - the current time
+	 */
+	static private void step(Session session, long now) throws IOException {
+
+		if(scenario.equals(PRIV)) {
+
+			command(session, now, "/priv lg" + random.nextInt(n_clients) + " " + body(now));
+			return;
+		}
+
+		if(scenario.equals(CHURN) && random.nextInt(10) == 0) {
+
+			// Leave, then go to another room
+			session.room = random.nextInt(n_rooms);
+			command(session, now, "/leave");
+			command(session, now, "/join room" + session.room);
+			return;
+		}
+
+		send(session, body(now));
+		count();
+	}
+
+	static private void command(Session session, long now, String line) throws IOException {
+
+		session.pending.add(now);
+		send(session, line);
+		count();
+	}
+
+	static private void count() {
+
+		if(measuring) {
+			sent++;
+		}
+	}
+
+	// The send time first, so receivers can read it back; padded to the configured size
+	static private String body(long now) {
+
+		StringBuilder sb = new StringBuilder(size);
+		sb.append(now).append(' ');
+
+		while(sb.length() < size) {
+			sb.append('x');
+		}
+
+		return sb.toString();
+	}
+
+	static private void send(Session session, String line) throws IOException {
+
+		enqueue(session, binary ? encode(line) : ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+	}
+
+	// The binary frame for one of the text lines built by the scenarios
+	static private ByteBuffer encode(String line) {
+
+		if(line.startsWith("/nick ")) {
+
+			return BinaryProtocol.encode(false, BinaryProtocol.NICK, bytes(line.substring(6)));
+
+		} else if(line.startsWith("/join ")) {
+
+			return BinaryProtocol.encode(false, BinaryProtocol.JOIN, bytes(line.substring(6)));
+
+		} else if(line.equals("/leave")) {
+
+			return BinaryProtocol.encode(false, BinaryProtocol.LEAVE);
+
+		} else if(line.equals("/compress")) {
+
+			return BinaryProtocol.encode(false, BinaryProtocol.COMPRESS);
+
+		} else if(line.startsWith("/priv ")) {
+
+			int space = line.indexOf(' ', 6);
+
+			return BinaryProtocol.encode(false, BinaryProtocol.PRIVATE, bytes(line.substring(6, space)), bytes(line.substring(space + 1)));
+		}
+
+		return BinaryProtocol.encode(false, BinaryProtocol.MESSAGE, bytes(line));
+	}
+
+	static private byte[] bytes(String s) {
+
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static private void enqueue(Session session, ByteBuffer bb) throws IOException {
+
+		if(session.outbound.isEmpty()) {
+
+			session.channel.write(bb);
+
+			if(!bb.hasRemaining()) {
+				return;
+			}
+		}
+
+		session.outbound.add(bb);
+		session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	static private void flush(Session session) throws IOException {
+
+		ByteBuffer bb;
+
+		while((bb = session.outbound.peek()) != null) {
+
+			session.channel.write(bb);
+
+			if(bb.hasRemaining()) {
+				return;
+			}
+
+			session.outbound.poll();
+		}
+
+		session.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	static private void read(Session session) throws IOException {
+
+		int n = session.channel.read(session.reader == null ? session.input : session.blocks);
+
+		if(n < 0) {
+
+			throw new IOException("closed by server");
+		}
+
+		if(measuring) {
+			bytes_received += n;
+		}
+
+		if(session.reader != null) {
+
+			inflate(session);
+		}
+
+		parse(session);
+	}
+
+	// Inflates the complete blocks received at the end of the session's input
+	static private void inflate(Session session) throws IOException {
+
+		session.blocks.flip();
+		session.input = session.reader.inflate(session.blocks, session.input, 1 << 24);
+		session.blocks.compact();
+	}
+
+	// The server compresses what follows its COMPRESS, starting at data[from] in the same read
+	static private boolean switched(Session session, byte[] data, int from, int to) throws IOException {
+
+		if(session.reader == null || session.blocks != null) {
+			return false;
+		}
+
+		// Room for an incomplete block whatever its size
+		session.blocks = ByteBuffer.allocate(2 * (Compression.HEADER + Compression.MAX_BLOCK)).put(data, from, to - from);
+		session.input.clear();
+
+		inflate(session);
+		parse(session);
+
+		return true;
+	}
+
+	// Handles the complete lines or frames of the session's input, and keeps the rest
+	static private void parse(Session session) throws IOException {
+
+		ByteBuffer input = session.input;
+
+		input.flip();
+
+		byte[] data = input.array();
+		int start	= 0;
+
+		if(binary) {
+
+			// Frames: opcode, length, then the fields
+			while(input.limit() - start >= BinaryProtocol.HEADER) {
+
+				int length = BinaryProtocol.readLength(data, start + 1);
+
+				if(input.limit() - start - BinaryProtocol.HEADER < length) {
+					break;
+				}
+
+				frame(session, data[start], data, start + BinaryProtocol.HEADER, length);
+				start += BinaryProtocol.HEADER + length;
+
+				if(switched(session, data, start, input.limit())) {
+					return;
+				}
+			}
+
+			input.position(start);
+			input.compact();
+			return;
+		}
+
+		for(int i = 0; i < input.limit(); i++) {
+
+			if(data[i] == '\n') {
+
+				line(session, data, start, i);
+				start = i + 1;
+
+				if(switched(session, data, start, input.limit())) {
+					return;
+				}
+			}
+		}
+
+		// Keep the incomplete line for the next read
+		input.position(start);
+		input.compact();
+	}
+
+	/**
+	 * Handles one binary frame from the server.
+	 *
+	 * @param session - the receiving session
+	 * @param opcode  - the frame's opcode
+	 * @param payload - the buffer holding the payload
+	 * @param offset  - where the payload starts
+	 * @param length  - the payload's length
+	 */
+	static private void frame(Session session, byte opcode, byte[] payload, int offset, int length) throws IOException {
+
+		switch(opcode) {
+
+			case BinaryProtocol.OK:
+			case BinaryProtocol.ERROR:
+				acknowledged(session, opcode == BinaryProtocol.ERROR, System.nanoTime());
+				break;
+
+			case BinaryProtocol.MESSAGE:
+			case BinaryProtocol.PRIVATE:
+				// Skip the sender; the message starts with its send time
+				int body = offset + 2 + BinaryProtocol.readLength(payload, offset) + 2;
+
+				delivered(payload, body, offset + length, System.nanoTime());
+				break;
+
+			case BinaryProtocol.PING:
+				enqueue(session, BinaryProtocol.encode(false, BinaryProtocol.PONG));
+				break;
+
+			case BinaryProtocol.COMPRESS:
+				session.reader = new Compression.Reader();
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Handles one line from the server.
+	 *
+	 * @param session - the receiving session
+	 * @param line	  - the buffer holding the line
+	 * @param from	  - where the line starts
+	 * @param to	  - where the line ends, excluding the '\n'
+	 */
+	static private void line(Session session, byte[] line, int from, int to) throws IOException {
+
+		long now = System.nanoTime();
+
+		switch(line[from]) {
+
+			case 'O':	// OK
+			case 'E':	// ERROR
+				acknowledged(session, line[from] == 'E', now);
+				break;
+
+			case 'M':	// MESSAGE nick time ...
+			case 'P':	// PRIVATE nick time ..., or PING
+				if(to - from == 4 && line[from + 1] == 'I') {
+
+					enqueue(session, ByteBuffer.wrap(bytes("/pong\n")));
+					break;
+				}
+
+				delivered(line, skipToken(line, skipToken(line, from, to), to), to, now);
+				break;
+
+			case 'C':	// COMPRESS
+				session.reader = new Compression.Reader();
+				break;
+
+			default:	// JOINED, LEFT, NEWNICK, BYE
+				break;
+		}
+	}
+
+	static private void acknowledged(Session session, boolean error, long now) {
+
+		if(error) {
+			errors++;
+		}
+
+		Long since = session.pending.poll();
+
+		if(since != null && since >= 0 && measuring) {
+
+			acks.record(now - since);
+		}
+
+		if(session.pending.isEmpty()) {
+
+			session.ready = true;
+		}
+	}
+
+	// Records the latency of a message whose content, starting with its send time, is in b[from, to)
+	static private void delivered(byte[] b, int from, int to, long now) {
+
+		long sent_at	 = 0;
+		boolean has_time = false;
+
+		while(from < to && b[from] >= '0' && b[from] <= '9') {
+
+			sent_at  = sent_at * 10 + (b[from++] - '0');
+			has_time = true;
+		}
+
+		if(has_time && measuring) {
+
+			received++;
+			delivery.record(now - sent_at);
+		}
+	}
+
+	// Index of the token following the one at 'from'
+	static private int skipToken(byte[] line, int from, int to) {
+
+		while(from < to && line[from] != ' ') {
+			from++;
+		}
+
+		while(from < to && line[from] == ' ') {
+			from++;
+		}
+
+		return from;
+	}
+}
@@ -0,0 +1,73 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Console logging off the event loops. Lines are queued and printed by a daemon thread, so a
+ * slow console never stalls a selector. If the queue is full the line is dropped and counted.
+ */
+class Log {
+
+	static private final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<>(8192);
+	static private final LongAdder dropped = new LongAdder();
+
+	static private class Entry {
+
+		final boolean error;
+		final String line;
+
+		Entry(boolean error, String line) {
+
+			this.error = error;
+			this.line  = line;
+		}
+	}
+
+	static {
+
+		Thread writer = new Thread(Log::drain, "chat-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	static void info(String line) {
+
+		log(false, line);
+	}
+
+	static void error(String line) {
+
+		log(true, line);
+	}
+
+	static private void log(boolean error, String line) {
+
+		if(!queue.offer(new Entry(error, line))) {
+
+			dropped.increment();
+		}
+	}
+
+	static private void drain() {
+
+		while(true) {
+
+			try {
+
+				Entry entry = queue.take();
+
+				(entry.error ? System.err : System.out).println(entry.line);
+
+				long lost = dropped.sumThenReset();
+
+				if(lost > 0) {
+
+					System.err.println("(" + lost + " log lines dropped)");
+				}
+
+			} catch(InterruptedException ie) {
+
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,682 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/*
+ * Plays a Capture back against a server: opens a connection for each one captured, sends it the
+ * same lines and frames, and closes it, keeping the captured order and, unless told to go
+ * faster, the captured timing. Like LoadGenerator, it runs on one selector thread, and reports
+ * throughput and delivery latency, so two builds can be compared on the same traffic.
+ *
+ * The latency of a room or private message is measured from when it was sent to each MESSAGE or
+ * PRIVATE line or frame with the same content, on any connection. Captured messages aren't
+ * stamped, so a content sent again is measured from its latest send; run the server without
+ * --history, whose replay on /join would be measured as very late deliveries. The content of files
+ * sent with /send is played back as read, and skipped when received.
+ *
+ * Usage: java Replay capture host port [--speed N|max] [--drain s]
+ *
+ * --speed 2 plays the capture twice as fast as it was recorded, --speed max as fast as the
+ * server takes it. --drain is how long to wait for the last deliveries once all was sent, 2 s by
+ * default.
+ */
+public class Replay {
+
+	// Most records sent in a row before the replay looks at the sockets again
+	static private final int BATCH = 1024;
+
+	// Send times older than this are forgotten
+	static private final long KEEP_NANOS = 10_000_000_000L;
+
+	// Configuration, from the command line
+	static private String host;
+	static private int port;
+	static private double speed = 1.0;		// 0 for as fast as possible
+	static private int drain	= 2;
+
+	// Measurements
+	static private final LoadGenerator.Recorder delivery = new LoadGenerator.Recorder();
+	static private long sent	   = 0;
+	static private long received   = 0;
+	static private long errors	   = 0;
+	static private long skipped	   = 0;
+	static private long bytes_sent = 0;
+	static private long bytes_received = 0;
+
+	// When each message content was last sent, in System.nanoTime()
+	static private final HashMap<String, Long> send_times = new HashMap<>();
+
+	/*
+	 * One replayed connection.
+	 */
+	static private class Session {
+
+		final int id;
+		final SocketChannel channel;
+		SelectionKey key;
+
+		boolean connected = false;
+		boolean binary	  = false;		// sent its first frame, after MAGIC
+		boolean closing	  = false;		// closed once its output is sent
+
+		// What's left to skip of a file being received, see FileTransfer
+		long file_remaining = 0;
+
+		final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+		ByteBuffer input = ByteBuffer.allocate(65536);
+
+		// Once the server compresses: inflates what it sends, and the blocks not inflated yet
+		Compression.Reader reader;
+		ByteBuffer blocks;
+
+		Session(int id, SocketChannel channel) {
+
+			this.id		 = id;
+			this.channel = channel;
+		}
+	}
+
+	static public void main(String args[]) throws Exception {
+
+		if(args.length < 3) {
+
+			System.err.println("Usage: java Replay capture host port [--speed N|max] [--drain s]");
+			System.exit(1);
+		}
+
+		host = args[1];
+		port = Integer.parseInt(args[2]);
+
+		for(int i = 3; i < args.length; i += 2) {
+
+			if(i + 1 == args.length) {
+
+				System.err.println("Missing value for " + args[i]);
+				System.exit(1);
+			}
+
+			switch(args[i]) {
+
+				case "--speed": speed = args[i + 1].equals("max") ? 0 : Double.parseDouble(args[i + 1]); break;
+				case "--drain": drain = Integer.parseInt(args[i + 1]); break;
+
+				default:
+					System.err.println("Unknown option " + args[i]);
+					System.exit(1);
+			}
+		}
+
+		try(Capture.Reader capture = new Capture.Reader(Paths.get(args[0]))) {
+
+			run(capture);
+		}
+	}
+
+	static private void run(Capture.Reader capture) throws IOException {
+
+		Selector selector = Selector.open();
+
+		// Open connections, by captured id
+		HashMap<Integer, Session> sessions = new HashMap<>();
+
+		System.out.printf("Replaying a capture started %tF %<tT at %s%n", capture.started, speed == 0 ? "full speed" : speed + "x");
+
+		long start		   = System.nanoTime();
+		long next_report   = start + 1_000_000_000L;
+		long next_prune	   = start + KEEP_NANOS;
+		long last_sent	   = 0, last_received = 0;
+		long finished	   = 0;		// when the last record was sent
+		long last_input	   = start;
+		long captured_time = 0;
+		boolean more	   = capture.next();
+
+		while(true) {
+
+			long now = System.nanoTime();
+
+			// Send what's due, a batch at a time
+			for(int n = 0; more && n < BATCH && now >= due(start, capture.time); n++) {
+
+				play(selector, sessions, capture);
+
+				captured_time = capture.time;
+				more		  = capture.next();
+			}
+
+			if(!more && finished == 0) {
+
+				finished = now;
+			}
+
+			if(finished != 0 && now - Math.max(finished, last_input) >= drain * 1_000_000_000L) {
+				break;
+			}
+
+			long wait = more ? (due(start, capture.time) - now) / 1_000_000 : 10;
+
+			if(wait > 0) {
+
+				selector.select(Math.min(wait, 10));
+
+			} else {
+
+				selector.selectNow();
+			}
+
+			Iterator<SelectionKey> key_iterator = selector.selectedKeys().iterator();
+
+			while(key_iterator.hasNext()) {
+
+				SelectionKey key = key_iterator.next();
+				key_iterator.remove();
+
+				Session session = (Session) key.attachment();
+
+				try {
+
+					if(key.isConnectable()) {
+
+						connected(session);
+
+					} else {
+
+						if(key.isWritable()) {
+
+							flush(session);
+						}
+
+						if(key.isReadable() && read(session)) {
+
+							last_input = System.nanoTime();
+						}
+					}
+
+					// Everything it sent before its CLOSE is out
+					if(session.closing && session.connected && session.outbound.isEmpty()) {
+
+						close(sessions, session);
+					}
+
+				} catch(IOException ie) {
+
+					close(sessions, session);
+				}
+			}
+
+			now = System.nanoTime();
+
+			if(now >= next_prune) {
+
+				long oldest = now - KEEP_NANOS;
+
+				send_times.values().removeIf(time -> time < oldest);
+				next_prune += KEEP_NANOS;
+			}
+
+			if(now >= next_report) {
+
+				System.out.printf("sent %d/s, delivered %d/s, %d connections%n", sent - last_sent, received - last_received, sessions.size());
+				last_sent	  = sent;
+				last_received = received;
+				next_report	 += 1_000_000_000L;
+			}
+		}
+
+		double seconds = Math.max(finished - start, 1_000_000) / 1e9;
+
+		System.out.println();
+		System.out.printf("replayed %.1f s of capture in %.1f s: sent %d lines and frames (%.0f/s), %d bytes; %d errors, %d skipped%n",
+						  captured_time / 1e6, seconds, sent, sent / seconds, bytes_sent, errors, skipped);
+		System.out.printf("delivered %d messages (%.0f/s), received %d bytes%n", received, received / seconds, bytes_received);
+		delivery.report("delivery latency");
+
+		for(Session session : sessions.values()) {
+
+			session.channel.close();
+		}
+	}
+
+	// When a record is due, in System.nanoTime()
+	static private long due(long start, long micros) {
+
+		return speed == 0 ? start : start + (long) (micros * 1000 / speed);
+	}
+
+	// Plays one record
+	static private void play(Selector selector, HashMap<Integer, Session> sessions, Capture.Reader capture) throws IOException {
+
+		Session session = sessions.get(capture.connection);
+
+		if(capture.kind == Capture.OPEN) {
+
+			// Its CLOSE wasn't captured
+			if(session != null) {
+
+				close(sessions, session);
+			}
+
+			SocketChannel sc = SocketChannel.open();
+			sc.configureBlocking(false);
+			sc.connect(new InetSocketAddress(host, port));
+
+			session		= new Session(capture.connection, sc);
+			session.key = sc.register(selector, SelectionKey.OP_CONNECT, session);
+			sessions.put(session.id, session);
+			return;
+		}
+
+		// Its OPEN wasn't captured, or the server closed it already, as after a /bye
+		if(session == null) {
+
+			if(capture.kind != Capture.CLOSE) {
+				skipped++;
+			}
+
+			return;
+		}
+
+		switch(capture.kind) {
+
+			case Capture.LINE:
+				sentMessage(line(capture.data, capture.length));
+
+				ByteBuffer line = ByteBuffer.allocate(capture.length + 1);
+				line.put(capture.data, 0, capture.length).put((byte) '\n').flip();
+
+				send(session, line);
+				break;
+
+			case Capture.FRAME:
+				if(!session.binary) {
+
+					session.binary = true;
+					send(session, ByteBuffer.wrap(new byte[] { BinaryProtocol.MAGIC }));
+				}
+
+				sentMessage(frame(capture.data, capture.length));
+				send(session, ByteBuffer.wrap(Arrays.copyOf(capture.data, capture.length)));
+				break;
+
+			case Capture.DATA:
+				send(session, ByteBuffer.wrap(Arrays.copyOf(capture.data, capture.length)));
+				bytes_sent += capture.length;
+				return;
+
+			case Capture.CLOSE:
+				session.closing = true;
+
+				if(session.connected && session.outbound.isEmpty()) {
+
+					close(sessions, session);
+				}
+
+				return;
+		}
+
+		sent++;
+		bytes_sent += capture.length;
+	}
+
+	// The content of a room or private message line, else null
+	static private String line(byte[] line, int length) {
+
+		if(length > 0 && line[0] == '/') {
+
+			// An escaped '/' starts a message
+			if(length > 1 && line[1] == '/') {
+
+				return content(line, 1, length);
+			}
+
+			if(length < 6 || !new String(line, 0, 6, StandardCharsets.UTF_8).equals("/priv ")) {
+
+				return null;
+			}
+
+			// After the recipient
+			int from = 6;
+
+			while(from < length && line[from] == ' ') {
+				from++;
+			}
+
+			while(from < length && line[from] != ' ') {
+				from++;
+			}
+
+			while(from < length && line[from] == ' ') {
+				from++;
+			}
+
+			return content(line, from, length);
+		}
+
+		return content(line, 0, length);
+	}
+
+	// The content of a MESSAGE or PRIVATE frame, else null
+	static private String frame(byte[] frame, int length) {
+
+		int pos = BinaryProtocol.HEADER;
+
+		if(frame[0] == BinaryProtocol.PRIVATE) {
+
+			// The message field follows the recipient's
+			pos += 2 + BinaryProtocol.readLength(frame, pos);
+
+		} else if(frame[0] != BinaryProtocol.MESSAGE) {
+
+			return null;
+		}
+
+		return pos + 2 <= length ? content(frame, pos + 2, Math.min(length, pos + 2 + BinaryProtocol.readLength(frame, pos))) : null;
+	}
+
+	// A message content as it's matched: without trailing blanks, which the server may trim
+	static private String content(byte[] b, int from, int to) {
+
+		while(to > from && (b[to - 1] == ' ' || b[to - 1] == '\r' || b[to - 1] == '\t')) {
+			to--;
+		}
+
+		return to > from ? new String(b, from, to - from, StandardCharsets.UTF_8) : null;
+	}
+
+	static private void sentMessage(String content) {
+
+		if(content != null) {
+
+			send_times.put(content, System.nanoTime());
+		}
+	}
+
+	static private void delivered(byte[] b, int from, int to) {
+
+		String content = content(b, from, to);
+		Long since	   = content == null ? null : send_times.get(content);
+
+		if(since != null) {
+
+			received++;
+			delivery.record(System.nanoTime() - since);
+		}
+	}
+
+	static private void connected(Session session) throws IOException {
+
+		session.channel.finishConnect();
+		session.connected = true;
+		session.key.interestOps(SelectionKey.OP_READ);
+
+		flush(session);
+	}
+
+	static private void send(Session session, ByteBuffer bb) throws IOException {
+
+		if(session.connected && session.outbound.isEmpty()) {
+
+			session.channel.write(bb);
+
+			if(!bb.hasRemaining()) {
+				return;
+			}
+		}
+
+		session.outbound.add(bb);
+
+		if(session.connected) {
+
+			session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
+
+	static private void flush(Session session) throws IOException {
+
+		ByteBuffer bb;
+
+		while((bb = session.outbound.peek()) != null) {
+
+			session.channel.write(bb);
+
+			if(bb.hasRemaining()) {
+
+				session.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+
+			session.outbound.poll();
+		}
+
+		session.key.interestOps(SelectionKey.OP_READ);
+	}
+
+	static private void close(HashMap<Integer, Session> sessions, Session session) throws IOException {
+
+		sessions.remove(session.id, session);
+		session.key.cancel();
+		session.channel.close();
+
+		if(session.reader != null) {
+
+			session.reader.end();
+		}
+	}
+
+	// Reads what the server sent; false if nothing
+	static private boolean read(Session session) throws IOException {
+
+		int n = session.channel.read(session.reader == null ? session.input : session.blocks);
+
+		if(n < 0) {
+
+			throw new IOException("closed by server");
+		}
+
+		bytes_received += n;
+
+		if(session.reader != null) {
+
+			inflate(session);
+		}
+
+		parse(session);
+
+		return n > 0;
+	}
+
+	// Inflates the complete blocks received at the end of the session's input
+	static private void inflate(Session session) throws IOException {
+
+		session.blocks.flip();
+		session.input = session.reader.inflate(session.blocks, session.input, 1 << 24);
+		session.blocks.compact();
+	}
+
+	// The server compresses what follows its COMPRESS, starting at data[from] in the same read
+	static private boolean switched(Session session, byte[] data, int from, int to) throws IOException {
+
+		if(session.reader == null || session.blocks != null) {
+			return false;
+		}
+
+		session.blocks = ByteBuffer.allocate(2 * (Compression.HEADER + Compression.MAX_BLOCK)).put(data, from, to - from);
+		session.input.clear();
+
+		inflate(session);
+		parse(session);
+
+		return true;
+	}
+
+	// Handles the complete lines or frames of the session's input, and keeps the rest
+	static private void parse(Session session) throws IOException {
+
+		ByteBuffer input = session.input;
+
+		input.flip();
+
+		byte[] data = input.array();
+		int start	= skip(session, 0, input.limit());
+
+		if(session.binary) {
+
+			while(input.limit() - start >= BinaryProtocol.HEADER) {
+
+				int length = BinaryProtocol.readLength(data, start + 1);
+
+				if(input.limit() - start - BinaryProtocol.HEADER < length) {
+					break;
+				}
+
+				received(session, data, start, BinaryProtocol.HEADER + length);
+				start = skip(session, start + BinaryProtocol.HEADER + length, input.limit());
+
+				if(switched(session, data, start, input.limit())) {
+					return;
+				}
+			}
+
+		} else {
+
+			for(int i = start; i < input.limit(); i++) {
+
+				if(data[i] == '\n') {
+
+					received(session, data, start, i - start);
+					start = skip(session, i + 1, input.limit());
+					i	  = start - 1;
+
+					if(switched(session, data, start, input.limit())) {
+						return;
+					}
+				}
+			}
+		}
+
+		input.position(start);
+		input.compact();
+	}
+
+	// Skips what's in data[start, limit) of a file being received; returns where the rest starts
+	static private int skip(Session session, int start, int limit) {
+
+		if(session.file_remaining <= 0) {
+			return start;
+		}
+
+		int n = (int) Math.min(session.file_remaining, limit - start);
+
+		session.file_remaining -= n;
+
+		return start + n;
+	}
+
+	/**
+	 * Handles one line or frame from the server. Only deliveries, errors and the switch to
+	 * compression matter; the captured clients' own answers, such as PONG, are in the capture.
+	 *
+	 * @param session - the receiving session
+	 * @param data	  - the buffer holding it
+	 * @param offset  - where it starts
+	 * @param length  - its length, without the '\n' of a line
+	 */
+	static private void received(Session session, byte[] data, int offset, int length) {
+
+		if(session.binary) {
+
+			switch(data[offset]) {
+
+				case BinaryProtocol.ERROR:
+					errors++;
+					break;
+
+				case BinaryProtocol.MESSAGE:
+				case BinaryProtocol.PRIVATE:
+					// Skip the sender
+					int field = offset + BinaryProtocol.HEADER + 2 + BinaryProtocol.readLength(data, offset + BinaryProtocol.HEADER);
+
+					delivered(data, field + 2, Math.min(offset + length, field + 2 + BinaryProtocol.readLength(data, field)));
+					break;
+
+				case BinaryProtocol.COMPRESS:
+					session.reader = new Compression.Reader();
+					break;
+
+				case BinaryProtocol.FILE:
+					// The size is the third field
+					int size = offset + BinaryProtocol.HEADER;
+
+					for(int i = 0; i < 2; i++) {
+
+						size += 2 + BinaryProtocol.readLength(data, size);
+					}
+
+					session.file_remaining = FileTransfer.parseSize(data, size + 2, size + 2 + BinaryProtocol.readLength(data, size));
+					break;
+
+				default:
+					break;
+			}
+
+			return;
+		}
+
+		int end = offset + length;
+
+		if(startsWith(data, offset, end, "MESSAGE ") || startsWith(data, offset, end, "PRIVATE ")) {
+
+			// The content follows the sender's nickname
+			int from = offset + 8;
+
+			while(from < end && data[from] != ' ') {
+				from++;
+			}
+
+			delivered(data, from + 1, end);
+
+		} else if(startsWith(data, offset, end, "ERROR")) {
+
+			errors++;
+
+		} else if(startsWith(data, offset, end, "COMPRESS")) {
+
+			session.reader = new Compression.Reader();
+
+		} else if(startsWith(data, offset, end, "FILE ")) {
+
+			// The size is the last word
+			int from = end;
+
+			while(from > offset && data[from - 1] != ' ') {
+				from--;
+			}
+
+			session.file_remaining = FileTransfer.parseSize(data, from, end);
+		}
+	}
+
+	static private boolean startsWith(byte[] b, int from, int to, String prefix) {
+
+		if(to - from < prefix.length()) {
+			return false;
+		}
+
+		for(int i = 0; i < prefix.length(); i++) {
+
+			if(b[from + i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
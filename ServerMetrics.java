@@ -0,0 +1,192 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/*
+ * Server counters. Every event loop updates them concurrently, so they are LongAdders (striped
+ * per thread, no contended CAS on the hot path) and LongAccumulators for maxima. Reading them sums
+ * the stripes, which only happens for /stats and JMX.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	/*
+	 * Kinds of lines counted by processLine().
+	 */
+	static final int NICK	 = 0;
+	static final int JOIN	 = 1;
+	static final int LEAVE	 = 2;
+	static final int BYE	 = 3;
+	static final int PRIVATE = 4;
+	static final int MESSAGE = 5;
+	static final int HISTORY = 6;
+	static final int SEND	 = 7;
+	static final int INVALID = 8;
+
+	final LongAdder connections_opened = new LongAdder();
+	final LongAdder connections_closed = new LongAdder();
+
+	final LongAdder[] commands = new LongAdder[INVALID + 1];
+
+	final LongAdder messages_fanned_out = new LongAdder();
+	final LongAdder bytes_read			= new LongAdder();
+	final LongAdder bytes_written		= new LongAdder();
+	final LongAdder queued_buffers		= new LongAdder();
+	final LongAdder partial_buffers		= new LongAdder();
+	final LongAdder slow_dropped		= new LongAdder();
+	final LongAdder slow_disconnects	= new LongAdder();
+	final LongAdder deflated_in			= new LongAdder();
+	final LongAdder deflated_out		= new LongAdder();
+
+	final LongAdder loop_iterations 	 = new LongAdder();
+	final LongAdder loop_nanos		 	 = new LongAdder();
+	final LongAccumulator loop_nanos_max = new LongAccumulator(Math::max, 0);
+
+	final LongAccumulator largest_room = new LongAccumulator(Math::max, 0);
+
+	final LongAdder history_appended = new LongAdder();
+	final LongAdder history_dropped	 = new LongAdder();
+
+	final LongAdder throttled		  = new LongAdder();
+	final LongAdder flood_disconnects = new LongAdder();
+
+	final LongAdder federation_forwarded = new LongAdder();
+	final LongAdder federation_received	 = new LongAdder();
+	final LongAdder federation_dropped	 = new LongAdder();
+
+	final LongAdder capture_records = new LongAdder();
+	final LongAdder capture_dropped = new LongAdder();
+
+	final LongAdder file_bytes_received = new LongAdder();
+	final LongAdder file_bytes_sent		= new LongAdder();
+
+	public ServerMetrics() {
+
+		for(int i = 0; i < commands.length; i++) {
+
+			commands[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Publishes these metrics on the platform MBean server.
+	 */
+	void register() {
+
+		try {
+
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=ServerMetrics"));
+
+		} catch(Exception e) {
+
+			Log.error("Could not register metrics with JMX: " + e);
+		}
+	}
+
+	/**
+	 * Records the time one selector loop iteration took.
+	 *
+	 * @param nanos - the iteration's duration
+	 */
+	void loopIteration(long nanos) {
+
+		loop_iterations.increment();
+		loop_nanos.add(nanos);
+		loop_nanos_max.accumulate(nanos);
+	}
+
+	@Override public long getConnectionsOpened()	 { return connections_opened.sum(); }
+	@Override public long getConnectionsClosed()	 { return connections_closed.sum(); }
+	@Override public long getConnections()			 { return getConnectionsOpened() - getConnectionsClosed(); }
+
+	@Override public long getNickCommands()			 { return commands[NICK].sum(); }
+	@Override public long getJoinCommands()			 { return commands[JOIN].sum(); }
+	@Override public long getLeaveCommands()		 { return commands[LEAVE].sum(); }
+	@Override public long getByeCommands()			 { return commands[BYE].sum(); }
+	@Override public long getPrivateCommands()		 { return commands[PRIVATE].sum(); }
+	@Override public long getRoomMessages()			 { return commands[MESSAGE].sum(); }
+	@Override public long getHistoryCommands()		 { return commands[HISTORY].sum(); }
+	@Override public long getSendCommands()			 { return commands[SEND].sum(); }
+	@Override public long getInvalidCommands()		 { return commands[INVALID].sum(); }
+
+	@Override public long getMessagesFannedOut()	 { return messages_fanned_out.sum(); }
+	@Override public long getBytesRead()			 { return bytes_read.sum(); }
+	@Override public long getBytesWritten()			 { return bytes_written.sum(); }
+	@Override public long getQueuedOutputBuffers()	 { return queued_buffers.sum(); }
+	@Override public long getPartialInputBuffers()	 { return partial_buffers.sum(); }
+	@Override public long getInputPoolBytes()		 { return BufferPool.reservedBytes(); }
+	@Override public long getSlowConsumerDrops()	 { return slow_dropped.sum(); }
+	@Override public long getSlowConsumerDisconnects() { return slow_disconnects.sum(); }
+	@Override public long getDeflatedBytesIn()		 { return deflated_in.sum(); }
+	@Override public long getDeflatedBytesOut()		 { return deflated_out.sum(); }
+
+	@Override public long getLoopIterations()		 { return loop_iterations.sum(); }
+	@Override public long getLoopNanosTotal()		 { return loop_nanos.sum(); }
+	@Override public long getLoopNanosMax()			 { return loop_nanos_max.get(); }
+
+	@Override public long getLargestRoom()			 { return largest_room.get(); }
+
+	@Override public long getHistoryAppended()		 { return history_appended.sum(); }
+	@Override public long getHistoryDropped()		 { return history_dropped.sum(); }
+
+	@Override public long getThrottled()			 { return throttled.sum(); }
+	@Override public long getFloodDisconnects()		 { return flood_disconnects.sum(); }
+
+	@Override public long getFederationForwarded()	 { return federation_forwarded.sum(); }
+	@Override public long getFederationReceived()	 { return federation_received.sum(); }
+	@Override public long getFederationDropped()	 { return federation_dropped.sum(); }
+
+	@Override public long getCaptureRecords()		 { return capture_records.sum(); }
+	@Override public long getCaptureDropped()		 { return capture_dropped.sum(); }
+
+	@Override public long getFileBytesReceived()	 { return file_bytes_received.sum(); }
+	@Override public long getFileBytesSent()		 { return file_bytes_sent.sum(); }
+
+	/**
+	 * All metrics on one line, as sent in reply to /stats.
+	 */
+	@Override
+	public String getSummary() {
+
+		long iterations = getLoopIterations();
+
+		return "connections=" + getConnections()
+			 + " opened=" + getConnectionsOpened()
+			 + " closed=" + getConnectionsClosed()
+			 + " nick=" + getNickCommands()
+			 + " join=" + getJoinCommands()
+			 + " leave=" + getLeaveCommands()
+			 + " bye=" + getByeCommands()
+			 + " priv=" + getPrivateCommands()
+			 + " messages=" + getRoomMessages()
+			 + " history=" + getHistoryCommands()
+			 + " send=" + getSendCommands()
+			 + " invalid=" + getInvalidCommands()
+			 + " fanned_out=" + getMessagesFannedOut()
+			 + " bytes_read=" + getBytesRead()
+			 + " bytes_written=" + getBytesWritten()
+			 + " queued_buffers=" + getQueuedOutputBuffers()
+			 + " partial_buffers=" + getPartialInputBuffers()
+			 + " input_pool_bytes=" + getInputPoolBytes()
+			 + " slow_dropped=" + getSlowConsumerDrops()
+			 + " slow_disconnects=" + getSlowConsumerDisconnects()
+			 + " deflated_in=" + getDeflatedBytesIn()
+			 + " deflated_out=" + getDeflatedBytesOut()
+			 + " loop_iterations=" + iterations
+			 + " loop_avg_ns=" + (iterations == 0 ? 0 : getLoopNanosTotal() / iterations)
+			 + " loop_max_ns=" + getLoopNanosMax()
+			 + " largest_room=" + getLargestRoom()
+			 + " history_appended=" + getHistoryAppended()
+			 + " history_dropped=" + getHistoryDropped()
+			 + " throttled=" + getThrottled()
+			 + " flood_disconnects=" + getFloodDisconnects()
+			 + " federation_forwarded=" + getFederationForwarded()
+			 + " federation_received=" + getFederationReceived()
+			 + " federation_dropped=" + getFederationDropped()
+			 + " capture_records=" + getCaptureRecords()
+			 + " capture_dropped=" + getCaptureDropped()
+			 + " file_bytes_received=" + getFileBytesReceived()
+			 + " file_bytes_sent=" + getFileBytesSent();
+	}
+}
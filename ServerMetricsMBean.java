@@ -0,0 +1,54 @@
+/*
+ * What ServerMetrics exposes over JMX, under chat:type=ServerMetrics.
+ */
+public interface ServerMetricsMBean {
+
+	long getConnectionsOpened();
+	long getConnectionsClosed();
+	long getConnections();
+
+	long getNickCommands();
+	long getJoinCommands();
+	long getLeaveCommands();
+	long getByeCommands();
+	long getPrivateCommands();
+	long getRoomMessages();
+	long getHistoryCommands();
+	long getSendCommands();
+	long getInvalidCommands();
+
+	long getMessagesFannedOut();
+	long getBytesRead();
+	long getBytesWritten();
+	long getQueuedOutputBuffers();
+	long getPartialInputBuffers();
+	long getInputPoolBytes();
+	long getSlowConsumerDrops();
+	long getSlowConsumerDisconnects();
+	long getDeflatedBytesIn();
+	long getDeflatedBytesOut();
+
+	long getLoopIterations();
+	long getLoopNanosTotal();
+	long getLoopNanosMax();
+
+	long getLargestRoom();
+
+	long getHistoryAppended();
+	long getHistoryDropped();
+
+	long getThrottled();
+	long getFloodDisconnects();
+
+	long getFederationForwarded();
+	long getFederationReceived();
+	long getFederationDropped();
+
+	long getCaptureRecords();
+	long getCaptureDropped();
+
+	long getFileBytesReceived();
+	long getFileBytesSent();
+
+	String getSummary();
+}
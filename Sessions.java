@@ -0,0 +1,94 @@
+import java.util.Arrays;
+
+/*
+ * The table of open connections, indexed by a small integer id given to each one when it
+ * connects. A closed connection's id goes to a stack of free ones and is handed out again
+ * before the table grows, so ids stay dense and the table as big as the most connections
+ * open at once. An entry costs a reference in the table, where a hash map would take a node,
+ * a key and a share of its buckets.
+ *
+ * The id also names the connection in the log and in traces. Shared by the event loops and
+ * ThreadEngine's threads, under the table's monitor; connections come and go far less often
+ * than they send anything, and nothing looks clients up on the way.
+ */
+class Sessions {
+
+	private ChatServer.Client[] table = new ChatServer.Client[1024];
+
+	// Ids given back, in a stack; and the first id never given out
+	private int[] free = new int[64];
+	private int n_free;
+	private int next;
+
+	private int size;
+
+	/**
+	 * Gives a client an id and stores it under that id.
+	 *
+	 * @param client - a new client
+	 * @return the client's id
+	 */
+	synchronized int add(ChatServer.Client client) {
+
+		int id;
+
+		if(n_free > 0) {
+
+			id = free[--n_free];
+
+		} else {
+
+			id = next++;
+
+			if(id == table.length) {
+
+				table = Arrays.copyOf(table, table.length * 2);
+			}
+		}
+
+		table[id] = client;
+		size++;
+
+		return id;
+	}
+
+	/**
+	 * Drops a client from the table and frees its id.
+	 *
+	 * @param client - the client
+	 * @return false if it wasn't in the table anymore
+	 */
+	synchronized boolean remove(ChatServer.Client client) {
+
+		int id = client.id;
+
+		if(id < 0 || id >= next || table[id] != client) {
+			return false;
+		}
+
+		table[id] = null;
+		size--;
+
+		if(n_free == free.length) {
+
+			free = Arrays.copyOf(free, free.length * 2);
+		}
+
+		free[n_free++] = id;
+
+		return true;
+	}
+
+	/**
+	 * The client with an id, or null if none has it.
+	 */
+	synchronized ChatServer.Client get(int id) {
+
+		return id >= 0 && id < next ? table[id] : null;
+	}
+
+	synchronized int size() {
+
+		return size;
+	}
+}
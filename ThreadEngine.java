@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The thread-per-connection engine, chosen with --engine threads instead of the event loops.
+ * Every connection gets its own thread doing plain blocking reads, and runs the same protocol
+ * handlers as the event loops. Writes block too: a handler writes to its recipients from its
+ * own thread, taking each recipient's write lock in turn, so nothing is ever queued. Idle
+ * timeouts are kept by the event loops' timing wheels, so they don't apply to this engine; a
+ * throttled connection's thread just sleeps.
+ *
+ * Connections run on virtual threads when the JVM has them (Java 21 and later). On older JVMs
+ * they fall back to platform threads from a cached pool, which serves the same purpose with a
+ * much bigger footprint per connection.
+ */
+class ThreadEngine {
+
+	// Read buffer of each connection; small since there is one per connection
+	static private final int BUFFER_SIZE = 4096;
+
+	/**
+	 * Accepts connections on the given port, forever.
+	 *
+	 * @param port - the listening port
+	 */
+	static void serve(int port) throws IOException {
+
+		ExecutorService executor = newExecutor();
+
+		// Blocking accept, same backlog as the event loops' acceptor
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(port), 1024);
+		Log.info("Listening on port " + port + " with a thread per connection");
+
+		while(true) {
+
+			SocketChannel sc = ssc.accept();
+
+			executor.execute(() -> serve(sc));
+		}
+	}
+
+	/**
+	 * Serves one connection until it's closed, on the calling thread.
+	 *
+	 * @param sc - the accepted socket channel, in blocking mode
+	 */
+	static private void serve(SocketChannel sc) {
+
+		ChatServer.Client client = new ChatServer.Client(sc, null);
+		ChatServer.connected(client);
+
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		try {
+
+			// A /bye closes the channel from within processReceived()
+			while(sc.isOpen()) {
+
+				// The content of a file being sent goes to its spool, see FileTransfer
+				if(client.files != null && client.files.upload != null) {
+
+					if(!FileTransfer.receive(client, buffer)) {
+						break;
+					}
+
+					continue;
+				}
+
+				buffer.clear();
+
+				int n = sc.read(buffer);
+
+				if(n < 0) {
+					break;
+				}
+
+				// Blocking reads mostly wait, so only the bytes are traced
+				Tracing.commit(Tracing.beginRead(), client, n);
+				ChatServer.metrics.bytes_read.add(n);
+				ChatServer.processReceived(sc, client, buffer.array(), buffer.position());
+
+				// Over a limit: the lines left are run once the time is up, before reading more
+				while(client.throttled_until != 0 && sc.isOpen()) {
+
+					Thread.sleep(Math.max(1, client.throttled_until - TimingWheel.now()));
+					ChatServer.resume(client);
+				}
+			}
+
+		} catch(IOException ie) {
+
+			// Reset by the peer, or closed by /bye while blocked in read()
+
+		} catch(InterruptedException ie) {
+
+			Thread.currentThread().interrupt();
+		}
+
+		ChatServer.close(client, "Closed");
+	}
+
+	private static ExecutorService newExecutor() {
+
+		// Looked up by name, so the server still builds and runs on Java 17
+		try {
+
+			ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+			Log.info("Serving connections on virtual threads");
+
+			return executor;
+
+		} catch(ReflectiveOperationException | RuntimeException e) {
+
+			Log.info("Virtual threads not available, serving connections on platform threads");
+		}
+
+		AtomicInteger next = new AtomicInteger();
+
+		return Executors.newCachedThreadPool(task -> {
+
+			Thread thread = new Thread(task, "chat-conn-" + next.getAndIncrement());
+			thread.setDaemon(true);
+
+			return thread;
+		});
+	}
+}
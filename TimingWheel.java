@@ -0,0 +1,147 @@
+/*
+ * A hashed timing wheel holding one deadline per connection of an event loop. Time is cut in
+ * ticks; the wheel has a slot per tick, wrapping around, and a deadline is kept in the slot of
+ * its tick. Deadlines further away than one turn share slots with nearer ones and are just
+ * skipped until their turn comes.
+ *
+ * Clients are linked into their slot through their own fields, so there are no timer objects,
+ * and scheduling or cancelling is O(1). Only the owning event loop uses its wheel.
+ */
+class TimingWheel {
+
+	static final long TICK_MILLIS = 100;
+
+	static private final int SLOTS = 512;		// a power of two
+
+	// Origin of now(), so ticks start at 0 and a client's timer_tick of 0 means unscheduled
+	static private final long EPOCH = System.nanoTime();
+
+	private final ChatServer.Client[] slots = new ChatServer.Client[SLOTS];
+
+	// The last tick whose slot was expired
+	private long tick;
+
+	private int size;
+
+	TimingWheel(long now) {
+
+		this.tick = now / TICK_MILLIS;
+	}
+
+	/**
+	 * Monotonic milliseconds since the server started, the time unit of all deadlines.
+	 */
+	static long now() {
+
+		return (System.nanoTime() - EPOCH) / 1_000_000;
+	}
+
+	boolean isEmpty() {
+
+		return size == 0;
+	}
+
+	/**
+	 * Milliseconds from now until the next tick is due.
+	 *
+	 * @param now - the current time, in milliseconds
+	 */
+	long untilNextTick(long now) {
+
+		return Math.max(1, (tick + 1) * TICK_MILLIS - now);
+	}
+
+	/**
+	 * Sets a client's deadline, replacing the one it had.
+	 *
+	 * @param client   - the client
+	 * @param deadline - when the client should be handed back to ChatServer.timedOut(), in
+	 *					 milliseconds; rounded up to the next tick
+	 */
+	void schedule(ChatServer.Client client, long deadline) {
+
+		cancel(client);
+
+		// Never in a slot that was already expired
+		client.timer_tick = Math.max(tick + 1, (deadline + TICK_MILLIS - 1) / TICK_MILLIS);
+
+		int slot = (int) (client.timer_tick & (SLOTS - 1));
+
+		client.timer_prev = null;
+		client.timer_next = slots[slot];
+
+		if(slots[slot] != null) {
+
+			slots[slot].timer_prev = client;
+		}
+
+		slots[slot] = client;
+		size++;
+	}
+
+	/**
+	 * Removes a client's deadline, if it has one.
+	 *
+	 * @param client - the client
+	 */
+	void cancel(ChatServer.Client client) {
+
+		if(client.timer_tick == 0) {
+			return;
+		}
+
+		if(client.timer_prev != null) {
+
+			client.timer_prev.timer_next = client.timer_next;
+
+		} else {
+
+			slots[(int) (client.timer_tick & (SLOTS - 1))] = client.timer_next;
+		}
+
+		if(client.timer_next != null) {
+
+			client.timer_next.timer_prev = client.timer_prev;
+		}
+
+		client.timer_prev = null;
+		client.timer_next = null;
+		client.timer_tick = 0;
+		size--;
+	}
+
+	/**
+	 * Expires every deadline up to now, handing each client to ChatServer.timedOut(), which may
+	 * schedule it again.
+	 *
+	 * @param now - the current time, in milliseconds
+	 */
+	void advance(long now) {
+
+		long last = now / TICK_MILLIS;
+
+		// After a long stall, one turn visits every slot
+		long first = Math.max(tick + 1, last - SLOTS + 1);
+
+		// Deadlines set while expiring land after it
+		tick = last;
+
+		for(long t = first; t <= last; t++) {
+
+			ChatServer.Client client = slots[(int) (t & (SLOTS - 1))];
+
+			while(client != null) {
+
+				ChatServer.Client next = client.timer_next;
+
+				if(client.timer_tick <= last) {
+
+					cancel(client);
+					ChatServer.timedOut(client, now);
+				}
+
+				client = next;
+			}
+		}
+	}
+}
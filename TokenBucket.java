@@ -0,0 +1,55 @@
+/*
+ * A token bucket limiting how often something happens: it holds up to 'burst' tokens, each
+ * event takes one, and they come back at 'rate' per second. It's refilled lazily, from the time
+ * passed since the last event, so there's no timer; an event costs a subtraction and a compare.
+ *
+ * Tokens are counted in thousandths, so a rate in tokens per second refills exactly 'rate'
+ * thousandths per millisecond. An event is never refused: when the bucket is empty it goes into
+ * debt, and the caller holds off until the debt is paid back.
+ *
+ * Not thread safe; a bucket shared by several threads must be used under its monitor.
+ */
+class TokenBucket {
+
+	static private final long TOKEN = 1000;
+
+	private final long rate;
+	private final long capacity;
+
+	private long level;
+	private long last;
+
+	/**
+	 * Creates a full bucket.
+	 *
+	 * @param rate	- tokens per second
+	 * @param burst - most tokens saved up
+	 * @param now	- the current time, in milliseconds
+	 */
+	TokenBucket(int rate, int burst, long now) {
+
+		this.rate	  = rate;
+		this.capacity = burst * TOKEN;
+		this.level	  = capacity;
+		this.last	  = now;
+	}
+
+	/**
+	 * Takes a token.
+	 *
+	 * @param now - the current time, in milliseconds
+	 * @return 0 if there was one, or how many milliseconds until the bucket is out of debt
+	 */
+	long take(long now) {
+
+		if(now > last) {
+
+			level = Math.min(capacity, level + (now - last) * rate);
+			last  = now;
+		}
+
+		level -= TOKEN;
+
+		return level >= 0 ? 0 : (-level + rate - 1) / rate;
+	}
+}
@@ -0,0 +1,315 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * Java Flight Recorder events marking each stage of a message's life on the server, to tell
+ * where delivery latency goes:
+ *
+ *   chat.Read		 a socket read, on the event loop or the connection's thread
+ *   chat.Framed	 a complete line or frame located in what was read
+ *   chat.Dispatched a command run, including the fan-out on its own loop
+ *   chat.FannedOut	 a shared message written to the members of a room on one loop
+ *   chat.Written	 a gathering write to a connection; 'drained' on the one that sent its last byte
+ *
+ * All of them run on the same thread for a given connection, so a recording lines them up per
+ * thread; the connection id, as in the log, tells connections apart.
+ *
+ * They're off by default, even in recordings made with the JDK's default settings. Started with
+ * --jfr file, the server records them, with the JDK's default events, and dumps the recording
+ * to that file when it exits. Otherwise the hot path only tests 'enabled', so tracing costs
+ * nothing unless asked for.
+ */
+class Tracing {
+
+	// Whether the events are recorded; set once at startup
+	static boolean enabled = false;
+
+	/**
+	 * Records the chat events, and the JDK's default ones, until the JVM exits.
+	 *
+	 * @param file - where the recording is dumped at exit
+	 */
+	static void start(Path file) throws IOException {
+
+		Recording recording;
+
+		try {
+
+			recording = new Recording(Configuration.getConfiguration("default"));
+
+		} catch(ParseException pe) {
+
+			throw new IOException(pe);
+		}
+
+		for(Class<? extends Event> event : List.of(Read.class, Framed.class, Dispatched.class, FannedOut.class, Written.class)) {
+
+			recording.enable(event).withoutThreshold().withoutStackTrace();
+		}
+
+		recording.setName("chat");
+		recording.setToDisk(true);
+		recording.setDestination(file);
+		recording.setMaxAge(Duration.ofHours(1));
+		recording.start();
+
+		enabled = true;
+
+		Log.info("Recording chat events to " + file);
+	}
+
+	@Name("chat.Read")
+	@Label("Read")
+	@Category("Chat")
+	@Description("A socket read")
+	@Enabled(false)
+	@StackTrace(false)
+	static class Read extends Event {
+
+		@Label("Connection")
+		int connection;
+
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+	}
+
+	@Name("chat.Framed")
+	@Label("Framed")
+	@Category("Chat")
+	@Description("A complete line or frame located in the bytes read")
+	@Enabled(false)
+	@StackTrace(false)
+	static class Framed extends Event {
+
+		@Label("Connection")
+		int connection;
+
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+
+		@Label("Binary")
+		boolean binary;
+	}
+
+	@Name("chat.Dispatched")
+	@Label("Dispatched")
+	@Category("Chat")
+	@Description("A command run, including the writes to recipients on the same event loop")
+	@Enabled(false)
+	@StackTrace(false)
+	static class Dispatched extends Event {
+
+		@Label("Connection")
+		int connection;
+
+		@Label("Command")
+		String command;
+
+		@Label("Room")
+		String room;
+
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+	}
+
+	@Name("chat.FannedOut")
+	@Label("Fanned Out")
+	@Category("Chat")
+	@Description("A message written to the members of a room on one thread")
+	@Enabled(false)
+	@StackTrace(false)
+	static class FannedOut extends Event {
+
+		@Label("Room")
+		String room;
+
+		@Label("Recipients")
+		int recipients;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Handoff")
+		@Description("From the message being encoded to this thread starting on it")
+		@Timespan(Timespan.NANOSECONDS)
+		long handoff;
+	}
+
+	@Name("chat.Written")
+	@Label("Written")
+	@Category("Chat")
+	@Description("A write to a connection")
+	@Enabled(false)
+	@StackTrace(false)
+	static class Written extends Event {
+
+		@Label("Connection")
+		int connection;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Buffers")
+		int buffers;
+
+		@Label("Drained")
+		@Description("Whether this write sent the last queued byte")
+		boolean drained;
+	}
+
+	/*
+	 * Each stage starts with begin...(), which returns null unless tracing is enabled, and ends
+	 * with commit(), which does nothing with null.
+	 */
+
+	static Read beginRead() {
+
+		return enabled ? begin(new Read()) : null;
+	}
+
+	static void commit(Read event, ChatServer.Client client, int bytes) {
+
+		if(event != null) {
+
+			event.connection = client.id;
+			event.bytes		 = bytes;
+			event.commit();
+		}
+	}
+
+	static Framed beginFramed() {
+
+		return enabled ? begin(new Framed()) : null;
+	}
+
+	static void commit(Framed event, ChatServer.Client client, int bytes) {
+
+		if(event != null) {
+
+			event.connection = client.id;
+			event.bytes		 = bytes;
+			event.binary	 = client.binary;
+			event.commit();
+		}
+	}
+
+	static Dispatched beginDispatched() {
+
+		return enabled ? begin(new Dispatched()) : null;
+	}
+
+	/**
+	 * Ends Dispatched.
+	 *
+	 * @param event	 - the event, or null
+	 * @param client - the client that sent the command
+	 * @param data	 - the buffer holding the line, or the frame's payload
+	 * @param opcode - the frame's opcode, or 0 for a text line
+	 * @param offset - where the line or payload starts
+	 * @param length - its length
+	 */
+	static void commit(Dispatched event, ChatServer.Client client, byte opcode, byte[] data, int offset, int length) {
+
+		if(event != null) {
+
+			event.connection = client.id;
+			event.command	 = client.binary ? opcodeName(opcode) : command(data, offset, length);
+			event.room		 = client.room != null ? client.room.name : null;
+			event.bytes		 = length;
+			event.commit();
+		}
+	}
+
+	// The handoff ends here, before the writes the event's duration covers
+	static FannedOut beginFannedOut(ChatServer.Outgoing shared) {
+
+		if(!enabled) {
+			return null;
+		}
+
+		FannedOut event = begin(new FannedOut());
+
+		event.handoff = shared.created == 0 ? 0 : System.nanoTime() - shared.created;
+
+		return event;
+	}
+
+	static void commit(FannedOut event, ChatServer.Room room, int recipients, long bytes) {
+
+		if(event != null) {
+
+			event.room		 = room.name;
+			event.recipients = recipients;
+			event.bytes		 = bytes;
+			event.commit();
+		}
+	}
+
+	static Written beginWritten() {
+
+		return enabled ? begin(new Written()) : null;
+	}
+
+	static void commit(Written event, ChatServer.Client client, long bytes, int buffers, boolean drained) {
+
+		if(event != null) {
+
+			event.connection = client.id;
+			event.bytes		 = bytes;
+			event.buffers	 = buffers;
+			event.drained	 = drained;
+			event.commit();
+		}
+	}
+
+	static private <E extends Event> E begin(E event) {
+
+		event.begin();
+
+		return event;
+	}
+
+	static private final String[] OPCODES = { "?", "NICK", "JOIN", "LEAVE", "BYE", "PRIVATE", "MESSAGE", "STATS", "HISTORY", "PONG", "COMPRESS", "SEND" };
+
+	static private String opcodeName(byte opcode) {
+
+		return opcode > 0 && opcode < OPCODES.length ? OPCODES[opcode] : "?";
+	}
+
+	// The command's verb, or "message" for a room message
+	static private String command(byte[] line, int offset, int length) {
+
+		if(length == 0 || line[offset] != '/' || length > 1 && line[offset + 1] == '/') {
+
+			return "message";
+		}
+
+		int end = offset;
+
+		while(end < offset + length && line[end] != ' ') {
+			end++;
+		}
+
+		return new String(line, offset, end - offset, ChatServer.charset);
+	}
+}
@@ -0,0 +1,192 @@
+package chat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectionKey;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+
+/*
+ * In-memory stand-ins for sockets, so the benchmarks drive the server's handlers on the
+ * benchmark thread with no network and no selector in the way.
+ */
+class BenchSupport {
+
+	/*
+	 * A channel that swallows everything written to it and, when fed, returns the same
+	 * bytes on every read.
+	 */
+	static class NullChannel extends SocketChannel {
+
+		public long written = 0;
+		private ByteBuffer input = ByteBuffer.allocate(0);
+
+		NullChannel() {
+
+			super(SelectorProvider.provider());
+		}
+
+		void feed(byte[] bytes) {
+
+			input = ByteBuffer.wrap(bytes);
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+
+			ByteBuffer src = input.duplicate();
+
+			if(src.remaining() > dst.remaining()) {
+
+				src.limit(src.position() + dst.remaining());
+			}
+
+			int n = src.remaining();
+			dst.put(src);
+
+			return n;
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) {
+
+			return read(dsts[offset]);
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+
+			int n = src.remaining();
+
+			src.position(src.limit());
+			written += n;
+
+			return n;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+
+			long n = 0;
+
+			for(int i = offset; i < offset + length; i++) {
+
+				n += write(srcs[i]);
+			}
+
+			return n;
+		}
+
+		@Override public SocketChannel bind(SocketAddress local) { return this; }
+		@Override public <T> SocketChannel setOption(SocketOption<T> name, T value) { return this; }
+		@Override public <T> T getOption(SocketOption<T> name) { return null; }
+		@Override public Set<SocketOption<?>> supportedOptions() { return Collections.emptySet(); }
+		@Override public SocketChannel shutdownInput() { return this; }
+		@Override public SocketChannel shutdownOutput() { return this; }
+		@Override public Socket socket() { return null; }
+		@Override public boolean isConnected() { return true; }
+		@Override public boolean isConnectionPending() { return false; }
+		@Override public boolean connect(SocketAddress remote) { return true; }
+		@Override public boolean finishConnect() { return true; }
+		@Override public SocketAddress getRemoteAddress() { return null; }
+		@Override public SocketAddress getLocalAddress() { return null; }
+		@Override protected void implCloseSelectableChannel() { }
+		@Override protected void implConfigureBlocking(boolean block) { }
+	}
+
+	/*
+	 * A key that is never selected; it only records interest changes made by the server.
+	 */
+	static class NullKey extends AbstractSelectionKey {
+
+		private final SelectableChannel channel;
+		private int interest_ops = SelectionKey.OP_READ;
+
+		NullKey(SelectableChannel channel) {
+
+			this.channel = channel;
+		}
+
+		@Override public SelectableChannel channel() { return channel; }
+		@Override public Selector selector() { return null; }
+		@Override public int interestOps() { return interest_ops; }
+		@Override public SelectionKey interestOps(int ops) { interest_ops = ops; return this; }
+		@Override public int readyOps() { return 0; }
+	}
+
+	/**
+	 * Sets up a single event loop whose thread is the calling one, without its selector loop
+	 * running, so the benchmark drives the handlers itself.
+	 */
+	static EventLoop singleLoop() throws IOException {
+
+		Thread current = Thread.currentThread();
+		EventLoop loop = new EventLoop(0, runnable -> current);
+
+		ChatServer.loops = new EventLoop[] { loop };
+
+		return loop;
+	}
+
+	/**
+	 * Creates a client on an in-memory channel.
+	 *
+	 * @param loop - the loop owning the client
+	 */
+	static ChatServer.Client newClient(EventLoop loop) {
+
+		NullChannel channel 	 = new NullChannel();
+		ChatServer.Client client = new ChatServer.Client(channel, loop);
+
+		client.key = new NullKey(channel);
+
+		return client;
+	}
+
+	/**
+	 * Creates a client that already has a nickname.
+	 *
+	 * @param loop - the loop owning the client
+	 * @param nick - the client's nickname
+	 */
+	static ChatServer.Client newNamedClient(EventLoop loop, String nick) throws IOException {
+
+		ChatServer.Client client = newClient(loop);
+
+		ChatServer.nick(client.channel, client, nick);
+
+		return client;
+	}
+
+	/**
+	 * Puts a room with the given number of members in place without going through join(),
+	 * which would send every one of them a JOINED for each later member.
+	 *
+	 * @param loop 	  - the loop owning the members
+	 * @param name 	  - the room's name
+	 * @param members - how many members to create
+	 */
+	static ChatServer.Room fillRoom(EventLoop loop, String name, int members) throws IOException {
+
+		ChatServer.Room room = ChatServer.rooms.computeIfAbsent(name, n -> new ChatServer.Room(n, 1));
+
+		for(int i = 0; i < members; i++) {
+
+			ChatServer.Client client = newNamedClient(loop, name + "-member-" + i);
+
+			client.state = ChatServer.State.INSIDE;
+			client.room	 = room;
+			room.members[0].add(client);
+		}
+
+		return room;
+	}
+}
@@ -0,0 +1,55 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Fan-out of one room message to every member, over in-memory channels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBench {
+
+	@Param({ "10", "1000", "100000" })
+	int members;
+
+	EventLoop loop;
+	ChatServer.Client sender;
+	byte[] message = "did anybody see the game last night? what a finish".getBytes(StandardCharsets.UTF_8);
+
+	@Setup
+	public void setup() throws IOException {
+
+		loop = BenchSupport.singleLoop();
+
+		ChatServer.Room room = BenchSupport.fillRoom(loop, "hall", members);
+
+		sender = room.members[0].slots[0];
+	}
+
+	@Benchmark
+	public void broadcast() throws IOException {
+
+		ChatServer.broadcastMessage(sender.channel, sender, message, 0, message.length);
+
+		// As at the end of an event loop pass
+		loop.flushDirty();
+	}
+}
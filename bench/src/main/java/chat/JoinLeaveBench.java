@@ -0,0 +1,53 @@
+package chat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * A client repeatedly joining and leaving an occupied room. Each step updates the room's
+ * membership and notifies everyone else in it with JOINED or LEFT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinLeaveBench {
+
+	@Param({ "10", "1000", "100000" })
+	int members;
+
+	EventLoop loop;
+	ChatServer.Client churner;
+
+	@Setup
+	public void setup() throws IOException {
+
+		loop = BenchSupport.singleLoop();
+
+		BenchSupport.fillRoom(loop, "hall", members);
+
+		churner = BenchSupport.newNamedClient(loop, "churner");
+	}
+
+	@Benchmark
+	public void joinLeave() throws IOException {
+
+		ChatServer.join(churner.channel, churner, "hall");
+		ChatServer.leave(churner.channel, churner);
+		loop.flushDirty();
+	}
+}
@@ -0,0 +1,76 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Nickname lookups against a large client table: /priv routing to existing users, and
+ * /nick attempts on names that are already taken.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NickLookupBench {
+
+	@Param({ "1000", "100000" })
+	int clients;
+
+	String[] names;
+	EventLoop loop;
+	ChatServer.Client sender;
+	byte[] message = "see you at noon".getBytes(StandardCharsets.UTF_8);
+	int next = 0;
+
+	@Setup
+	public void setup() throws IOException {
+
+		loop = BenchSupport.singleLoop();
+
+		names = new String[clients];
+
+		for(int i = 0; i < clients; i++) {
+
+			names[i] = "user" + i;
+			BenchSupport.newNamedClient(loop, names[i]);
+		}
+
+		sender = BenchSupport.newNamedClient(loop, "sender");
+	}
+
+	private String nextName() {
+
+		next = next + 1 == names.length ? 0 : next + 1;
+
+		return names[next];
+	}
+
+	@Benchmark
+	public void privateMessage() throws IOException {
+
+		ChatServer.sendPrivateMessage(sender.channel, sender, nextName(), message, 0, message.length);
+		loop.flushDirty();
+	}
+
+	@Benchmark
+	public void nickInUse() throws IOException {
+
+		ChatServer.nick(sender.channel, sender, nextName());
+		loop.flushDirty();
+	}
+}
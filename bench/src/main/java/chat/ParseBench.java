@@ -0,0 +1,95 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * processInput() over a read holding a realistic mix of pipelined lines: mostly room messages,
+ * some private messages, escaped messages, nick changes and room switches. The room only has
+ * two members, so the numbers are dominated by framing and command dispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBench {
+
+	// Lines in one read; the sequence leaves the sender as it found it, so it can be replayed
+	static final String[] TRAFFIC = {
+		"hello everyone",
+		"did anybody see the game last night?",
+		"/priv peer are you around later?",
+		"that was a close one",
+		"//etc/hosts is where it lives",
+		"/nick sender2",
+		"ok, back",
+		"/join lobby",
+		"anyway, lunch?",
+		"/priv peer  see you at noon  ",
+		"/nick sender",
+		"/leave",
+		"/join lobby",
+		"sounds good",
+		"/bogus command",
+		"bye for now",
+	};
+
+	// Sized so one read fits in the event loop's read buffer
+	static final int LINES = 512;
+
+	EventLoop loop;
+	ChatServer.Client sender;
+
+	@Setup
+	public void setup() throws IOException {
+
+		loop = BenchSupport.singleLoop();
+
+		ChatServer.Client peer = BenchSupport.newNamedClient(loop, "peer");
+		ChatServer.join(peer.channel, peer, "lobby");
+
+		sender = BenchSupport.newNamedClient(loop, "sender");
+		ChatServer.join(sender.channel, sender, "lobby");
+
+		StringBuilder read = new StringBuilder();
+
+		for(int i = 0; i < LINES; i++) {
+
+			read.append(TRAFFIC[i % TRAFFIC.length]).append('\n');
+		}
+
+		byte[] bytes = read.toString().getBytes(StandardCharsets.UTF_8);
+
+		if(bytes.length > loop.buffer.capacity()) {
+
+			throw new IllegalStateException("traffic doesn't fit in one read: " + bytes.length + " bytes");
+		}
+
+		((BenchSupport.NullChannel) sender.channel).feed(bytes);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public boolean mixedTraffic() throws IOException {
+
+		boolean open = ChatServer.processInput(sender.channel, sender);
+		loop.flushDirty();
+
+		return open;
+	}
+}